@@ -10,9 +10,15 @@ import java.awt.Toolkit;
 import java.awt.datatransfer.Clipboard;
 import java.awt.datatransfer.StringSelection;
 import java.awt.datatransfer.Transferable;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.concurrent.ExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import javax.swing.JOptionPane;
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 
 /**
  *
@@ -20,6 +26,14 @@ import javax.swing.JOptionPane;
  */
 public class BeautifierFrame extends javax.swing.JFrame {
 
+    private static final int DEBOUNCE_DELAY = 300;
+    private static final int MAX_SOURCE_LENGTH = 1000;
+    private static final java.awt.Color COLOR_ERROR = new java.awt.Color(192, 0, 0);
+    private static final java.awt.Color COLOR_NORMAL = new java.awt.Color(96, 96, 96);
+
+    private final Timer debounceTimer;
+    private BeautifyWorker currentWorker;
+
     /**
      * Creates new form BeautifierFrame
      */
@@ -30,6 +44,119 @@ public class BeautifierFrame extends javax.swing.JFrame {
         int iCoordY = (objDimension.height - this.getHeight()) / 2;
         this.setLocation(iCoordX, iCoordY);
         this.setSize(this.getPreferredSize());
+
+        //--- Beautify as user types (after short pause) ---
+        debounceTimer = new Timer(DEBOUNCE_DELAY, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                startBeautify();
+            }
+        });
+        debounceTimer.setRepeats(false);
+        jSourceText.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                debounceTimer.restart();
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                debounceTimer.restart();
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+                debounceTimer.restart();
+            }
+        });
+
+        //--- Load metadata in background, so first beautification does not wait for it ---
+        showStatus("Loading metadata...", false);
+        new SwingWorker<Void, Void>() {
+            @Override
+            protected Void doInBackground() {
+                ParserEngine.getDefault();
+                return null;
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    get();
+                    if (currentWorker == null) {
+                        showStatus("Ready", false);
+                    }
+                } catch (InterruptedException | ExecutionException ex) {
+                    showStatus("Metadata was not loaded: " + ex.getMessage(), true);
+                }
+            }
+        }.execute();
+    }
+
+    /**
+     * Worker which beautifies one version of the source text
+     */
+    private class BeautifyWorker extends SwingWorker<String, Void> {
+
+        private final String source;
+
+        BeautifyWorker(String source) {
+            this.source = source;
+        }
+
+        @Override
+        protected String doInBackground() throws Exception {
+            return BuParser.beautifyLink(source);
+        }
+
+        @Override
+        protected void done() {
+            if (this != currentWorker || isCancelled()) { //Stale result
+                return;
+            }
+            currentWorker = null;
+            try {
+                jResultText.setText(get());
+                showStatus("OK", false);
+            } catch (ExecutionException ex) {
+                jResultText.setText("");
+                Throwable cause = ex.getCause() != null ? ex.getCause() : ex;
+                showStatus(cause.getMessage() != null ? cause.getMessage() : cause.toString(), true);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Cancels running beautification (if any) and starts new one for the current source text
+     */
+    private void startBeautify() {
+        debounceTimer.stop();
+        if (currentWorker != null) {
+            currentWorker.cancel(true);
+            currentWorker = null;
+        }
+        String source = jSourceText.getText().trim();
+        if (source.isEmpty()) {
+            jResultText.setText("");
+            showStatus("Ready", false);
+            return;
+        }
+        if (source.length() > MAX_SOURCE_LENGTH) {
+            jResultText.setText("");
+            showStatus("Source is too long (" + source.length() + " characters)", true);
+            return;
+        }
+        showStatus("Beautifying...", false);
+        currentWorker = new BeautifyWorker(source);
+        currentWorker.execute();
+    }
+
+    private void showStatus(String text, boolean error) {
+        jStatusLabel.setForeground(error ? COLOR_ERROR : COLOR_NORMAL);
+        jStatusLabel.setText(text);
+        jStatusLabel.setToolTipText(text);
     }
 
     /**
@@ -49,10 +176,11 @@ public class BeautifierFrame extends javax.swing.JFrame {
         jResultText = new javax.swing.JTextField();
         jSourceClear = new javax.swing.JButton();
         jResultCopy = new javax.swing.JButton();
+        jStatusLabel = new javax.swing.JLabel();
 
         setDefaultCloseOperation(javax.swing.WindowConstants.EXIT_ON_CLOSE);
         setTitle("Link Beautifier");
-        setPreferredSize(new java.awt.Dimension(400, 150));
+        setPreferredSize(new java.awt.Dimension(400, 175));
         setSize(new java.awt.Dimension(400, 300));
         getContentPane().setLayout(new java.awt.GridBagLayout());
 
@@ -130,20 +258,21 @@ public class BeautifierFrame extends javax.swing.JFrame {
         gridBagConstraints.insets = new java.awt.Insets(0, 0, 0, 10);
         getContentPane().add(jResultCopy, gridBagConstraints);
 
+        jStatusLabel.setText(" ");
+        gridBagConstraints = new java.awt.GridBagConstraints();
+        gridBagConstraints.gridx = 0;
+        gridBagConstraints.gridy = 3;
+        gridBagConstraints.gridwidth = 3;
+        gridBagConstraints.fill = java.awt.GridBagConstraints.HORIZONTAL;
+        gridBagConstraints.anchor = java.awt.GridBagConstraints.LINE_START;
+        gridBagConstraints.insets = new java.awt.Insets(0, 10, 5, 10);
+        getContentPane().add(jStatusLabel, gridBagConstraints);
+
         pack();
     }// </editor-fold>//GEN-END:initComponents
 
     private void jBeautifyButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_jBeautifyButtonActionPerformed
-        try {
-            String source = jSourceText.getText();
-            String result = BuParser.beautifyLink(source);
-            jResultText.setText(result);
-        } catch (Exception ex) {
-            JOptionPane.showMessageDialog(this,
-                    ex.getMessage(),
-                    "Unable to parse",
-                    JOptionPane.ERROR_MESSAGE);
-        }
+        startBeautify();
     }//GEN-LAST:event_jBeautifyButtonActionPerformed
 
     private void jSourceClearActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_jSourceClearActionPerformed
@@ -200,5 +329,6 @@ public class BeautifierFrame extends javax.swing.JFrame {
     private javax.swing.JButton jSourceClear;
     private javax.swing.JLabel jSourceLabel;
     private javax.swing.JTextField jSourceText;
+    private javax.swing.JLabel jStatusLabel;
     // End of variables declaration//GEN-END:variables
 }
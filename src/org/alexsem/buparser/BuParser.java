@@ -1,12 +1,10 @@
 package org.alexsem.buparser;
 
-import org.alexsem.buparser.util.RomanNumbers;
-
-import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
@@ -16,56 +14,97 @@ import java.time.LocalDate;
 import java.time.Month;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.alexsem.buparser.CalendarEntry.Line;
-import org.alexsem.buparser.model.Book;
-import org.alexsem.buparser.model.Location;
-import org.alexsem.buparser.model.LocationSet;
 import org.alexsem.buparser.model.Metadata;
-import org.alexsem.buparser.util.LocationCalculator;
-import org.alexsem.buparser.util.XMLParser;
+import org.alexsem.buparser.util.FetchScheduler;
+import org.alexsem.buparser.util.ParseException;
+import org.alexsem.buparser.util.ParseResult;
+import org.alexsem.buparser.util.ResponseReader;
+import org.alexsem.buparser.util.RuleProfiler;
+import org.alexsem.buparser.util.StagedPipeline;
 
 public class BuParser {
 
-    private static final String URL_TITLE = "http://www.patriarchia.ru/bu/%1$tY-%1$tm-%1$td/";
-    private static final String URL_READINGS = "http://www.patriarchia.ru/rpc/date=%1$tY-%1$tm-%1$td/kld.xml";
+    private static final String URL_BASE = System.getProperty("buparser.url", "http://www.patriarchia.ru");
+    private static final String URL_TITLE = URL_BASE + "/bu/%1$tY-%1$tm-%1$td/";
+    private static final String URL_READINGS = URL_BASE + "/rpc/date=%1$tY-%1$tm-%1$td/kld.xml";
 
-    private static final String PATH_DIRECTORY = "c:/calendar/%04d";
+    private static final String PATH_DIRECTORY = System.getProperty("buparser.output", "c:/calendar") + "/%04d";
     private static final String PATH_READINGS = PATH_DIRECTORY + "/%03d.xml";
     private static final String PATH_INFO = PATH_DIRECTORY + "/info.csv";
+    private static final String PATH_ARCHIVE = PATH_DIRECTORY + ".buca";
 
     private static final Pattern PATTERN_TITLE = Pattern.compile("Версия для печати.*?<br> *?<p> *?<b>(.*?)</p>");
-    private static final Pattern PATTERN_READINGS = Pattern.compile("<div class=\"read\">(.*?)</div> *?<div class");
-    private static final Pattern PATTERN_READING = Pattern.compile("([^<]*?)[,:\\-]? *?<a.*?>([^<]*?)[.,]?</a>( *?<div.*?</div>)? *?");
-    private static final Pattern PATTERN_DOUBLE_LINE = Pattern.compile("((.*?)[,:\\-]? *?(([123] )?[А-Я][а-я]+?\\.,.*?\\d)\\.?){2}");
-    private static final Pattern PATTERN_ROMAN = Pattern.compile("([IVXLCDM]+), ");
-    private static final Pattern PATTERN_COMMENT_SEPARATOR = Pattern.compile("\\d\\.");
-    private static final Pattern PATTERN_COMMENT_LEFT = Pattern.compile("(.*?)[,:\\-]? *?(([123][ _])?[А-Я][а-я]+?\\.,.*\\d)( \\(Недели \\d{1,2}-й\\))?\\.?");
-    private static final Pattern PATTERN_MISSING_BOOK = Pattern.compile("<a.*?bible/(.+?)/.*?\\)(,.*)</a>");
-    private static final Pattern PATTERN_SUBSTITUTE = Pattern.compile("(.*?) - (за (понедельник|вторник|среду|четверг|пятницу|субботу|воскресенье) и за (понедельник|вторник|среду|четверг|пятницу|субботу|воскресенье))( \\(под зачало\\))?");
-    private static final Pattern PATTERN_COMPLEX_GROUPS1 = Pattern.compile("([123]?[А-Я][а-я]*\\. ([0-9]{1,3}):.+?),([0-9]{1,3}) - ([0-9]{1,3}:[0-9]{1,3})");
-    private static final Pattern PATTERN_COMPLEX_GROUPS2 = Pattern.compile("([123]?[А-Я][а-я]*\\. .*?[0-9]{1,3}:[0-9]{1,3} - ([0-9]{1,3}):[0-9]{1,3}),(.+?)");
+
+    private static final boolean PARSE_TITLES = true;
+    private static final int TIMEOUT_CONNECT = 10000;
+    private static final int TIMEOUT_READ = 30000;
+    private static final long TIMEOUT_TITLE = 60000;
+    private static final long TIMEOUT_READINGS = 60000;
+    private static final int PIPELINE_FETCH_THREADS = Integer.getInteger("buparser.fetch.threads", 8);
+    private static final int FETCH_ATTEMPTS = 5;
+    private static final double FETCH_RATE = Double.parseDouble(System.getProperty("buparser.fetch.rate", "4"));
+    private static final int FETCH_BURST = 4;
+    private static final int FETCH_CONCURRENCY_MIN = 1;
+    private static final int FETCH_CONCURRENCY_MAX = Integer.getInteger("buparser.fetch.concurrency", 8);
+    private static final int FETCH_CONCURRENCY_INITIAL = 2;
+    private static final int PIPELINE_QUEUE_CAPACITY = 16;
 
     private static List<String> HOLIDAYS_STATIC = Arrays.asList("09-21", "09-27", "12-04", "01-07", "01-19", "02-15", "04-07", "08-19", "08-28", "09-11", "10-14", "01-14", "07-07", "07-12");
 
-    private static Metadata metadata;
-    private static final Pattern VALIDATOR_READINGS;
+    private static final FetchScheduler FETCH_SCHEDULER = new FetchScheduler(FETCH_RATE, FETCH_BURST,
+            FETCH_CONCURRENCY_MIN, FETCH_CONCURRENCY_MAX, FETCH_CONCURRENCY_INITIAL);
+    private static final ExecutorService FETCH_EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "buparser-fetch");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
 
     //==========================================================================
-    static {
-        try {
-            InputStream stream = BuParser.class.getClassLoader().getResourceAsStream("resources/meta.xml");
-            List<Book> books = XMLParser.parseMetadata(stream);
-            metadata = new Metadata();
-            for (Book book : books) {
-                metadata.addBook(book);
-            }
-            VALIDATOR_READINGS = Pattern.compile(LocationCalculator.generateValidationPattern(metadata));
-        } catch (Exception ex) {
-            throw new RuntimeException("Metadata was not properly loaded!!!", ex);
-        }
+    /**
+     * Return metadata which is used for parsing and validation
+     * @return Loaded metadata
+     */
+    public static Metadata getMetadata() {
+        return ParserEngine.getDefault().getMetadata();
+    }
+
+    /**
+     * Normalizes and validates link using default engine
+     * @param link Link in question
+     * @return Normalized link
+     * @throws Exception in case link is not valid
+     * @see ParserEngine#beautifyLink(String)
+     */
+    public static String beautifyLink(String link) throws Exception {
+        return ParserEngine.getDefault().beautifyLink(link);
+    }
+
+    /**
+     * Parses readings document using default engine
+     * @param readingsData Readings document (kld.xml)
+     * @return List of readings
+     * @throws Exception in case document can not be parsed
+     * @see ParserEngine#parseReadings(String)
+     */
+    public static List<Line> parseReadings(String readingsData) throws Exception {
+        return ParserEngine.getDefault().parseReadings(readingsData);
     }
 
     //==========================================================================
@@ -114,25 +153,140 @@ public class BuParser {
     }
 
     //==========================================================================
-    private static String readDataFromURL(String url) throws MalformedURLException, IOException {
-        StringBuilder builder = new StringBuilder();
-
-        HttpURLConnection connection = null;
-        do {
-            connection = (HttpURLConnection) new URL(url).openConnection();
-        } while (connection == null || connection.getResponseCode() != 200);
-
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream()))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                builder.append(line);
+    /**
+     * Reads data from URL (request may be aborted from another thread)
+     * @param url     URL to read data from
+     * @param request Request which holds current connection (null if request is not abortable)
+     * @return Response
+     * @throws MalformedURLException in case URL is not valid
+     * @throws IOException           in case request fails or is aborted
+     */
+    private static String readDataFromURL(String url, FetchRequest request) throws MalformedURLException, IOException {
+        for (int attempt = 1;; attempt++) {
+            try {
+                FETCH_SCHEDULER.acquire();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for request slot: " + url);
+            }
+            long start = System.nanoTime();
+            int status = -1;
+            String retryAfter = null;
+            IOException failure = null;
+            try {
+                HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+                connection.setConnectTimeout(TIMEOUT_CONNECT);
+                connection.setReadTimeout(TIMEOUT_READ);
+                if (request != null && !request.attach(connection)) {
+                    throw new InterruptedIOException("Request was aborted: " + url);
+                }
+                ResponseReader.prepare(connection);
+                status = connection.getResponseCode();
+                retryAfter = connection.getHeaderField("Retry-After");
+                if (status == 200) {
+                    return ResponseReader.read(connection);
+                }
+                connection.disconnect();
+            } catch (IOException ex) {
+                status = -1;
+                failure = ex;
+            } finally {
+                FETCH_SCHEDULER.release(status, System.nanoTime() - start, retryAfter);
+            }
+            if (request != null && request.isAborted()) {
+                throw new InterruptedIOException("Request was aborted: " + url);
+            }
+            if (!FetchScheduler.isRetryable(status) || attempt >= FETCH_ATTEMPTS) {
+                if (failure != null) {
+                    throw failure;
+                }
+                throw new IOException("HTTP " + status + " after " + attempt + " attempt(s): " + url);
             }
         }
-        return builder.toString();
+    }
+
+    /**
+     * Asynchronous request which may be aborted from another thread.
+     * Cancelling CompletableFuture does not interrupt its task, so abort closes the current
+     * connection instead (blocked read fails at once) and prevents further attempts,
+     * which frees both executor thread and scheduler permit
+     */
+    private static class FetchRequest {
+
+        private CompletableFuture<String> future;
+        private HttpURLConnection connection;
+        private boolean aborted = false;
+
+        /**
+         * Remembers connection of the current attempt
+         * @param connection Connection in question
+         * @return false if request is already aborted
+         */
+        synchronized boolean attach(HttpURLConnection connection) {
+            this.connection = connection;
+            return !aborted;
+        }
+
+        synchronized boolean isAborted() {
+            return aborted;
+        }
+
+        /**
+         * Aborts request (current connection is closed, no more attempts are made)
+         */
+        synchronized void abort() {
+            aborted = true;
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Starts asynchronous request
+     * @param url URL to read data from
+     * @return Request whose future will hold the response
+     */
+    private static FetchRequest readDataFromURLAsync(final String url) {
+        final FetchRequest request = new FetchRequest();
+        request.future = CompletableFuture.supplyAsync(new Supplier<String>() {
+            @Override
+            public String get() {
+                try {
+                    return readDataFromURL(url, request);
+                } catch (IOException ex) {
+                    throw new CompletionException(ex);
+                }
+            }
+        }, FETCH_EXECUTOR);
+        return request;
+    }
+
+    /**
+     * Waits for asynchronous request to complete (request is aborted if it times out or thread is interrupted)
+     * @param request Request in question
+     * @param timeout Timeout (in milliseconds)
+     * @return Response
+     * @throws InterruptedException in case thread is interrupted (interrupt flag is kept)
+     * @throws Exception            in case request fails or times out
+     */
+    private static String awaitData(FetchRequest request, long timeout) throws Exception {
+        try {
+            return request.future.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            request.abort();
+            Thread.currentThread().interrupt();
+            throw ex;
+        } catch (ExecutionException ex) {
+            throw ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
+        } catch (TimeoutException ex) {
+            request.abort();
+            throw new Exception("Request timed out after " + timeout + " ms", ex);
+        }
     }
 
     //==========================================================================
-    private static CalendarEntry parseBasicInfo(LocalDate day, Collection<String> holidays) throws Exception {
+    private static CalendarEntry parseBasicInfo(LocalDate day, Collection<String> holidays) {
         CalendarEntry entry = new CalendarEntry();
 
         //--- Check if holiday --- 
@@ -141,12 +295,10 @@ public class BuParser {
             holiday = holidays.contains(DateTimeFormatter.ofPattern("MM-dd").format(day));
         }
         entry.setHoliday(holiday);
-        if (true) { //TODO !!!!!!!!
-            return entry;
-        }
+        return entry;
+    }
 
-        //--- Parse title ---
-        String titleData = readDataFromURL(String.format(URL_TITLE, day));
+    private static void parseTitle(String titleData, CalendarEntry entry, LocalDate day) {
         String title = "";
         Matcher titleMatcher = PATTERN_TITLE.matcher(titleData);
         if (titleMatcher.find()) {
@@ -163,373 +315,243 @@ public class BuParser {
             //throw new Exception("Empty title: " + titleData);
         }
         int firstDot = title.indexOf('.');
-        String subtitle = title.substring(firstDot + 1).trim();
-        title = title.substring(0, firstDot);
+        String subtitle = firstDot < 0 ? "" : title.substring(firstDot + 1).trim();
+        title = firstDot < 0 ? title : title.substring(0, firstDot);
         entry.setTitle(title);
         entry.setFeast(subtitle);
         entry.setFeastingIndex(0);
-
-        return entry;
     }
 
-    //==========================================================================
-    public static String beautifyLink(String link) throws Exception {
-        if (link.matches(".*?[^,] 1$")) {
-            System.out.print("Relpaced " + link); //TODO remove
-            link = link.substring(0, link.length() - 2);
-            System.out.println(" with " + link); //TODO remove
-        }
-        link = link.replace('–', '-');
-        link = link.replaceAll("последи&#769;", "");
-        link = link.replaceAll("\u0301", "&#769;");
-        link = link.replaceAll(", *?\\d+-\\d+ зач\\.( \\(от полу&#769;\\))? *?,", "");
-        link = link.replaceAll(", *?\\d+ зач\\.( \\(от полу&#769;\\))? *?,", "");
-        link = link.replaceAll("\\*", "");
-        link = link.replaceAll("^(\\d) ([А-Яа-я])", "$1$2");
-        link = link.replaceAll(", или", "");
-        link = link.replaceAll("\\.? \\d{1,2}-е", "");
-        link = link.replaceAll("\\.? Прпп?\\.:", ""); //TODO careful with this one
-        link = link.replaceAll(" -$", "");
-        link = link.replaceAll("Сол\\.", "Фес.");
-        link = link.replaceAll("1_Фес\\.", "1Фес.");
-        link = link.replaceAll("2_Фес\\.", "2Фес.");
-        link = link.replaceAll("1_Ин\\.", "1Ин.");
-        link = link.replaceAll("2_Ин\\.", "2Ин.");
-        link = link.replaceAll("3_Ин\\.", "3Ин.");
-        link = link.replaceAll("1_Пет\\.", "1Пет.");
-        link = link.replaceAll("2_Пет\\.", "2Пет.");
-        link = link.replaceAll("1_Кор\\.", "1Кор.");
-        link = link.replaceAll("2_Кор\\.", "2Кор.");
-        link = link.replaceAll("1_Тим\\.", "1Тим.");
-        link = link.replaceAll("2_Тим\\.", "2Тим.");
-        link = link.replaceAll("Притч\\.", "Прит.");
-        link = link.replaceAll("Прем\\.[ _]Солом\\.", "Прем.");
-        link = link.replaceAll(" \\(Недели \\d{1,2}-й\\)", "").trim();
-        link = link.replaceAll("(\\d{2})\\d{2,3}", "$1");
-        link = link.replaceAll(" \\(о Закхее\\)", "");
-        link = link.replaceAll(" \\(о хананеянке\\)", "");
-        link = link.replaceAll("; ", ", ");
-        link = link.replaceAll("\\.,", "\\.");
-        if (link.endsWith(";") || link.endsWith(".") || link.endsWith(",")) {
-            link = link.substring(0, link.length() - 1);
-        }
-        Matcher romanMatcher = PATTERN_ROMAN.matcher(link);
-        while (romanMatcher.find()) {
-            String numbers = link.substring(romanMatcher.end()).replaceAll("(\\d), (\\d)", "$1,$2");
-            link = link.substring(0, romanMatcher.start()) + RomanNumbers.romanToDecimal(romanMatcher.group(1)) + ":" + numbers;
-            romanMatcher = PATTERN_ROMAN.matcher(link);
-        }
-        Matcher cgm1 = PATTERN_COMPLEX_GROUPS1.matcher(link);
-        if (cgm1.matches()) {
-//            System.out.print("CG: " + link + " replaced with "); //TODO remove
-            link = String.format("%s, %s:%s - %s", cgm1.group(1), cgm1.group(2), cgm1.group(3), cgm1.group(4));
-//            System.out.println(link); //TODO remove
-        }
-        Matcher cgm2 = PATTERN_COMPLEX_GROUPS2.matcher(link);
-        if (cgm2.matches()) {
-//            System.out.print("CG: " + link + " replaced with "); //TODO remove
-            link = String.format("%s, %s:%s", cgm2.group(1), cgm2.group(2), cgm2.group(3));
-//            System.out.println(link); //TODO remove
-        }
-        if (!VALIDATOR_READINGS.matcher(link.toLowerCase() + ";").matches()) {
-            throw new Exception("Invalid readings: " + link);
-        }
-        return link;
-    }
     //==========================================================================
 
-    private static String restoreMissingBookNames(String data) {
-        Matcher missingMatcher = PATTERN_MISSING_BOOK.matcher(data);
-        if (missingMatcher.matches()) {
-            data = String.format("%s.%s", missingMatcher.group(1), missingMatcher.group(2));
-            data = data.replaceAll("mf", "Мф");
-            data = data.replaceAll("mk", "Мк");
-            data = data.replaceAll("lk", "Лк");
-            data = data.replaceAll("jn", "Ин");
-            data = data.replaceAll("act", "Деян");
-            data = data.replaceAll("jak", "Иак");
-            data = data.replaceAll("pe1", "1 Пет");
-            data = data.replaceAll("pe2", "2 Пет");
-            data = data.replaceAll("jn1", "1 Ин");
-            data = data.replaceAll("jn2", "2 Ин");
-            data = data.replaceAll("jn3", "3 Ин");
-            data = data.replaceAll("jud", "Иуд");
-            data = data.replaceAll("rom", "Рим");
-            data = data.replaceAll("co1", "1 Кор");
-            data = data.replaceAll("co2", "2 Кор");
-            data = data.replaceAll("gal", "Гал");
-            data = data.replaceAll("eph", "Еф");
-            data = data.replaceAll("flp", "Флп");
-            data = data.replaceAll("col", "Кол");
-            data = data.replaceAll("fe1", "1 Фес");
-            data = data.replaceAll("fe2", "2 Фес");
-            data = data.replaceAll("ti1", "1 Тим");
-            data = data.replaceAll("ti2", "2 Тим");
-            data = data.replaceAll("tit", "Тит");
-            data = data.replaceAll("flm", "Флм");
-            data = data.replaceAll("heb", "Евр");
-            data = data.replaceAll("rev", "Откр");
-        }
-        data = data.replaceAll("Ин1\\.", "1 Ин.");
-        return data;
-    }
+    /**
+     * Raw data of one day which is downloaded by fetch stage
+     */
+    private static class DayData {
 
-    private static Line splitLineAndComment(String data) throws Exception {
-        Matcher leftMatcher = PATTERN_COMMENT_LEFT.matcher(data);
-        if (!leftMatcher.matches()) {
-            data = restoreMissingBookNames(data);
-            leftMatcher = PATTERN_COMMENT_LEFT.matcher(data);
-        }
-        if (leftMatcher.matches()) {
-            String link = leftMatcher.group(2);
-            link = beautifyLink(link);
-            String comment = leftMatcher.group(1).trim();
-            if (PATTERN_ROMAN.matcher(comment).find()) {
-                throw new Exception("Illegal comment: " + comment);
-            }
-            return new Line(link, comment);
-        } else {
-            throw new Exception("Cannot split line: " + data);
-        }
-    }
+        private final LocalDate day;
+        private String titleData;
+        private Exception titleError;
+        private String readingsData;
+        private Exception readingsError;
 
-    //==========================================================================
-    private static List<Line> extractLinesFromComment(String data) throws Exception {
-        if (data.endsWith(";")) {
-            data = data.substring(0, data.length() - 1) + ".";
+        DayData(LocalDate day) {
+            this.day = day;
         }
-        data = data.replaceAll(" ?Ев\\. составное:? ?", "");
-        List<Line> lines = new ArrayList<>();
-        Matcher separator = PATTERN_COMMENT_SEPARATOR.matcher(data);
-        if (separator.find()) {
-            //--- Process left part ---
-            String left = data.substring(0, separator.end());
-            lines.add(splitLineAndComment(left));
-            //--- Process right part ---
-            String right;
-            if (separator.end() >= data.length()) {
-                right = lines.get(lines.size() - 1).getComment();
-            } else {
-                right = data.substring(separator.end() + 1).trim();
-            }
-            if (PATTERN_ROMAN.matcher(right).find()) { //2 links present
-                Line line = splitLineAndComment(right);
-                lines.add(line);
-                lines.add(new Line(null, line.getComment()));
-            } else { //Only 1 link
-                if (right.endsWith(":") || right.endsWith("-") || right.endsWith("–")) {
-                    right = right.substring(0, right.length() - 1).trim();
-                }
-                lines.add(new Line(null, right));
-            }
-        } else {
-            throw new Exception("Illegal comment: " + data);
-        }
-        return lines;
     }
 
-    //==========================================================================
+    /**
+     * Calendar entry of one day which is produced by parse stage
+     */
+    private static class ParsedDay {
 
-    private static int countMatches(String data, String match) {
-        if (match.isEmpty()) {
-            return 0;
+        private final CalendarEntry entry;
+        private final List<Exception> errors = new ArrayList<>();
+
+        ParsedDay(CalendarEntry entry) {
+            this.entry = entry;
         }
-        return (data.length() - data.replaceAll(Pattern.quote(match), "").length()) / match.length();
     }
 
-    private static List<Line> parseReadings(LocalDate day) throws Exception {
-        List<Line> result = new ArrayList<>();
-
-        //--- Parse readings ---
-        String readingsData = readDataFromURL(String.format(URL_READINGS, day));
-        readingsData = readingsData.replace('–', '-');
-        String readings = "";
-        Matcher readingsMatcher = PATTERN_READINGS.matcher(readingsData);
-        if (readingsMatcher.find()) {
-            readings = readingsMatcher.group(1).trim();
-            if (readings.endsWith("&nbsp;")) {
-                readings = readings.substring(0, readings.length() - "&nbsp;".length()).trim();
+    /**
+     * Downloads title and readings pages of the specific day (both requests are issued concurrently)
+     * @param day Day in question
+     * @return Downloaded data (failures are stored instead of being thrown)
+     * @throws InterruptedException in case thread is interrupted (both requests are aborted)
+     */
+    private static DayData fetchDay(LocalDate day) throws InterruptedException {
+        DayData data = new DayData(day);
+        FetchRequest titleRequest = PARSE_TITLES ? readDataFromURLAsync(String.format(URL_TITLE, day)) : null;
+        FetchRequest readingsRequest = readDataFromURLAsync(String.format(URL_READINGS, day));
+        try {
+            data.readingsData = awaitData(readingsRequest, TIMEOUT_READINGS);
+        } catch (InterruptedException ex) {
+            if (titleRequest != null) {
+                titleRequest.abort();
             }
-            readings = readings + "&nbsp;";
-        }
-//            System.out.println(readings); //TODO remove
-        if (readings.length() == 0) {
-            throw new Exception("No readings data found" + readingsData);
+            throw ex;
+        } catch (Exception ex) {
+            data.readingsError = ex;
         }
-        int numberOfNbspsCalc = countMatches(readings, "&nbsp;");
-        int numberOfPericopes = countMatches(readings, "зач.") + countMatches(readings, "\"), ");
-        String lastComment = "";
-        int numberOfNbspsEmp = 0;
-        for (String nbspPart : readings.split("&nbsp;")) {
-            nbspPart = nbspPart.trim();
-
-            if (!PATTERN_ROMAN.matcher(nbspPart).find()) {
-                System.out.println("Skipped NBSP part: " + nbspPart);
-                numberOfNbspsCalc--;
-                continue;
-            }
-
-            if (PATTERN_DOUBLE_LINE.matcher(nbspPart).matches()) { //2 lines in one nbsp part
-                Matcher separator = PATTERN_COMMENT_SEPARATOR.matcher(nbspPart);
-                if (separator.find()) {
-                    String left = nbspPart.substring(0, separator.end());
-                    String right = nbspPart.substring(separator.end() + 1).trim();
-                    result.add(splitLineAndComment(left));
-                    result.add(splitLineAndComment(right));
-                    numberOfNbspsEmp++;
-                    continue;
-                }
+        if (titleRequest != null) {
+            try {
+                data.titleData = awaitData(titleRequest, TIMEOUT_TITLE);
+            } catch (InterruptedException ex) {
+                throw ex;
+            } catch (Exception ex) {
+                data.titleError = ex;
             }
+        }
+        return data;
+    }
 
-            Matcher readingMatcher = PATTERN_READING.matcher(nbspPart);
-            if (readingMatcher.matches()) {
-
-                String link = readingMatcher.group(2).trim();
-                link = beautifyLink(link);
-                String comment = readingMatcher.group(1).trim();
-
-                if (comment.endsWith(", или")) {
-                    result.add(splitLineAndComment(comment.substring(0, comment.length() - ", или".length())));
-                    comment = "или";
-                }
-
-                Matcher substituteMatcher = PATTERN_SUBSTITUTE.matcher(comment);
-                if (substituteMatcher.matches()) {
-                    String subLink = substituteMatcher.group(1);
-                    subLink = beautifyLink(subLink);
-                    result.add(new Line(subLink, lastComment));
-                    comment = substituteMatcher.group(2).trim();
-                }
+    /**
+     * Builds calendar entry from downloaded data
+     * @param data     Downloaded data
+     * @param holidays List of holidays ("MM-dd")
+     * @return Parsed entry along with all errors which occurred
+     */
+    private static ParsedDay parseDay(DayData data, Collection<String> holidays) {
+        ParsedDay result = new ParsedDay(parseBasicInfo(data.day, holidays));
+        CalendarEntry entry = result.entry;
 
-                if (PATTERN_ROMAN.matcher(comment).find()) {
-                    List<Line> lines = extractLinesFromComment(comment);
-                    lines.get(lines.size() - 1).setLink(link);
-                    lastComment = lines.get(lines.size() - 1).getComment();
-                    result.addAll(lines);
-                } else {
-                    if (comment.isEmpty()) {
-                        comment = lastComment;
-                    } else {
-                        lastComment = comment;
-                    }
-                    result.add(new Line(link, comment));
-                }
-                numberOfNbspsEmp++;
-            } else if (PATTERN_ROMAN.matcher(nbspPart).find()) {
-                Line line = splitLineAndComment(nbspPart);
-                if (line.getComment().isEmpty()) {
-                    line.setComment(lastComment);
-                } else {
-                    lastComment = line.getComment();
-                }
-                result.add(line);
-                numberOfNbspsEmp++;
-            } else {
-                throw new Exception("NBSP part does not match: " + nbspPart);
+        //--- Parse title ---
+        if (data.titleError != null) {
+            result.errors.add(data.titleError);
+        } else if (data.titleData != null) {
+            try {
+                parseTitle(data.titleData, entry, data.day);
+            } catch (Exception ex) {
+                result.errors.add(ex);
             }
         }
-        if (numberOfNbspsCalc != numberOfNbspsEmp) {
-            throw new Exception("Not every reading found (nbsp): " + readings);
-        }
-        if (result.size() != numberOfPericopes) {
-            for (Line line : result) {
-                LocationSet locationSet = LocationCalculator.parseSearchString(metadata, line.getLink());
-                Location location = locationSet.getLocations().get(0);
-                if (location.getBook() <= 50) { //Old Testament
-                    numberOfPericopes++;
-                }
-            }
-            if (result.size() != numberOfPericopes) {
-                throw new Exception("Not every reading found (pericope): " + readings);
+
+        //--- Parse readings ---
+        if (data.readingsError != null) {
+            result.errors.add(data.readingsError);
+        } else {
+            ParserEngine engine = ParserEngine.getDefault();
+            ParseResult<List<Line>> readings = engine.tryParseReadings(data.readingsData);
+            ParseResult<CalendarEntry> added = readings.isSuccess() ? engine.tryAddReadings(entry, readings.getValue()) : readings.<CalendarEntry>propagate();
+            if (!added.isSuccess()) {
+                result.errors.add(new ParseException(added));
             }
         }
-        if (result.isEmpty()) {
-            throw new Exception("Zero readings");
-        }
-
         return result;
     }
-    //==========================================================================
 
-    private static void parseYear(int year) {
+    /**
+     * Parses all calendar entries for the specific year.
+     * Days are downloaded, parsed and written by separate stages of the pipeline
+     * @param year    Year in question
+     * @param archive true to write single compressed archive file instead of separate files for every day
+     * @return Pipeline which was used (holds run statistics) or null if output could not be prepared
+     */
+    static StagedPipeline<?, ?, ?> parseYear(final int year, boolean archive) {
         //--- Determine holidays list ---
-        List<String> holidays = getDynamicHolidaysForYear(year);
+        final List<String> holidays = getDynamicHolidaysForYear(year);
         holidays.addAll(HOLIDAYS_STATIC);
 
         //--- Prepare data ---
-        StringBuilder info = new StringBuilder();
-        new File(String.format(PATH_DIRECTORY, year)).mkdirs();
-        int errorCount = 0;
-        LocalDate currentDay = LocalDate.of(year, Month.FEBRUARY, 1); //TODO change to JANUARY
-
-        //--- Run entry loop ---
-        while (currentDay.getYear() == year) {
-            System.out.println(currentDay.getDayOfYear() + ": " + currentDay.toString()); //TODO change
-
-            //--- Parse basic info ---
-            CalendarEntry currentEntry;
-            try {
-                currentEntry = parseBasicInfo(currentDay, holidays);
-            } catch (Exception ex) {
-                ex.printStackTrace();
-                return;
+        final StringBuilder info = new StringBuilder();
+        CalendarArchiveWriter archiveWriter = null;
+        try {
+            if (archive) {
+                File archiveFile = new File(String.format(PATH_ARCHIVE, year));
+                archiveFile.getParentFile().mkdirs();
+                archiveWriter = CalendarArchiveWriter.forYear(archiveFile, year, true);
+            } else {
+                new File(String.format(PATH_DIRECTORY, year)).mkdirs();
             }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            return null;
+        }
+        final CalendarArchiveWriter writer = archiveWriter;
+        final AtomicInteger errorCount = new AtomicInteger(); //Sink runs in this thread, atomic is used as mutable holder
+        List<LocalDate> days = new ArrayList<>();
+        for (LocalDate day = LocalDate.of(year, Month.FEBRUARY, 1); day.getYear() == year; day = day.plusDays(1)) { //TODO change to JANUARY
+            days.add(day);
+        }
 
-            //--- Parse readings ---
-            try {
-                List<Line> readings = parseReadings(currentDay);
-                for (Line line : readings) {
-                    LocationSet locationSet = LocationCalculator.parseSearchString(metadata, line.getLink());
-                    if (locationSet == null) {
-                        throw new NullPointerException(line.getLink());
+        //--- Run entry pipeline ---
+        final StagedPipeline<LocalDate, DayData, ParsedDay> pipeline = new StagedPipeline<>(
+                new StagedPipeline.Stage<LocalDate, DayData>() {
+                    @Override
+                    public DayData process(LocalDate day) throws InterruptedException {
+                        return fetchDay(day);
+                    }
+                },
+                new StagedPipeline.Stage<DayData, ParsedDay>() {
+                    @Override
+                    public ParsedDay process(DayData data) {
+                        return parseDay(data, holidays);
+                    }
+                },
+                PIPELINE_FETCH_THREADS, PIPELINE_QUEUE_CAPACITY);
+        try {
+            pipeline.run(days, new StagedPipeline.Sink<LocalDate, ParsedDay>() {
+                @Override
+                public void accept(LocalDate day, ParsedDay parsed, Exception error) throws Exception {
+                    System.out.println(String.format("%d: %s [parse queue: %d, write queue: %d, reorder: %d]", day.getDayOfYear(), day, //TODO change
+                            pipeline.getParseQueueDepth(), pipeline.getWriteQueueDepth(), pipeline.getReorderDepth()));
+                    if (error != null) {
+                        parsed = new ParsedDay(parseBasicInfo(day, holidays));
+                        parsed.errors.add(error);
+                    }
+                    CalendarEntry entry = parsed.entry;
+                    for (Exception ex : parsed.errors) {
+                        System.err.println(day.getDayOfYear() + ": " + day.toString()); //TODO change
+                        if (ex instanceof ParseException) { //Input problem, stack trace is not captured
+                            System.err.println(ex.getMessage());
+                        } else {
+                            ex.printStackTrace();
+                        }
+                        errorCount.incrementAndGet();
                     }
-                    Location location = locationSet.getLocations().get(0);
-                    if (location.getBook() <= 50) { //Old Testament
-                        currentEntry.addReadingsOld(line);
-                    } else if (location.getBook() <= 54) {
-                        currentEntry.addReadingsGospel(line);
+
+                    //--- Write entry ---
+                    if (writer != null) {
+                        writer.write(day, entry);
                     } else {
-                        currentEntry.addReadingsApostle(line);
+                        try (OutputStream output = new FileOutputStream(String.format(PATH_READINGS, year, day.getDayOfYear()))) {
+                            entry.writeXML(output);
+                        }
+                    }
+
+                    //--- Append infodata ---
+                    if (day.getDayOfMonth() == 1 && day.getMonth() != Month.JANUARY) {
+                        info.append('\n');
+                    }
+                    if (day.getDayOfMonth() != 1) {
+                        info.append(',');
                     }
+                    info.append(entry.isHoliday() ? '1' : '0');
+                    info.append('0');
                 }
-            } catch (Exception ex) {
-                System.err.println(currentDay.getDayOfYear() + ": " + currentDay.toString()); //TODO change
-                ex.printStackTrace();
-                errorCount++;
+            });
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            if (writer != null) {
+                closeQuietly(writer);
             }
-            try (PrintWriter writer = new PrintWriter(String.format(PATH_READINGS, year, currentDay.getDayOfYear()))) {
-                writer.write(currentEntry.toXML());
-            } catch (Exception ex) {
+            return pipeline;
+        }
+
+        //--- Save archive or info file ---
+        if (writer != null) {
+            closeQuietly(writer);
+        } else {
+            try (PrintWriter infoWriter = new PrintWriter(String.format(PATH_INFO, year))) {
+                infoWriter.write(info.toString());
+            } catch (IOException ex) {
                 ex.printStackTrace();
-                return;
             }
+        }
 
-            //--- Append infodata ---
-            if (currentDay.getDayOfMonth() == 1 && currentDay.getMonth() != Month.JANUARY) {
-                info.append('\n');
-            }
-            if (currentDay.getDayOfMonth() != 1) {
-                info.append(',');
-            }
-            info.append(currentEntry.isHoliday() ? '1' : '0');
-            info.append('0');
-            currentDay = currentDay.plusDays(1);
-//            break; //TODO remove
+        System.out.println("Errors: " + errorCount.get());
+        pipeline.report(System.out);
+        System.out.println("Fetch scheduler: " + FETCH_SCHEDULER);
+        if (RuleProfiler.isEnabled()) {
+            RuleProfiler.report(System.out);
         }
+        return pipeline;
+    }
 
-        //--- Save info file ---
-        try (PrintWriter writer = new PrintWriter(String.format(PATH_INFO, year, currentDay.getDayOfYear()))) {
-            writer.write(info.toString());
+    private static void closeQuietly(CalendarArchiveWriter writer) {
+        try {
+            writer.close();
         } catch (IOException ex) {
             ex.printStackTrace();
         }
-
-        System.out.println("Errors: " + errorCount);
     }
 
     public static void main(String[] args) {
+        if (Arrays.asList(args).contains("-profile")) {
+            RuleProfiler.setEnabled(true);
+        }
 
-        parseYear(2021);
+        parseYear(2021, Arrays.asList(args).contains("-archive"));
     }
 
 }
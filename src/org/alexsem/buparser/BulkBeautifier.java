@@ -0,0 +1,198 @@
+package org.alexsem.buparser;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.alexsem.buparser.util.ParseResult;
+
+/**
+ * Class which beautifies and validates links in bulk (one link per line).
+ * Lines are processed in parallel, but results are written in input order: only a fixed window
+ * of lines is in flight, so memory does not depend on input size.
+ * Every input line produces one output line (empty if link is not valid, unless -skip is used),
+ * errors are written to stderr as "line number: input: message".
+ * <pre>
+ * Usage: BulkBeautifier [-threads N] [-window N] [-skip] [file]
+ * </pre>
+ * Link is read from stdin if file is not specified. Exit code is 1 if some links are not valid
+ * @author Semeniuk A.D.
+ */
+public class BulkBeautifier {
+
+    private static final int WINDOW_PER_THREAD = 64;
+
+    /**
+     * Result of one line
+     */
+    private static class Result {
+
+        private final String input;
+        private final String output;
+        private final String error;
+
+        Result(String input, String output, String error) {
+            this.input = input;
+            this.output = output;
+            this.error = error;
+        }
+    }
+
+    private final ParserEngine engine;
+    private final int threads;
+    private final int window;
+    private final boolean skipInvalid;
+    private long processed;
+    private long invalid;
+
+    /**
+     * Creates beautifier
+     * @param engine      Engine to use
+     * @param threads     Number of worker threads
+     * @param window      Maximum number of lines in flight
+     * @param skipInvalid true to omit invalid lines from output instead of writing empty lines
+     */
+    public BulkBeautifier(ParserEngine engine, int threads, int window, boolean skipInvalid) {
+        if (threads <= 0 || window <= 0) {
+            throw new IllegalArgumentException("Thread count and window must be positive");
+        }
+        this.engine = engine;
+        this.threads = threads;
+        this.window = window;
+        this.skipInvalid = skipInvalid;
+    }
+
+    /**
+     * Processes all lines of the input
+     * @param input  Input (one link per line)
+     * @param output Output for beautified links
+     * @param errors Output for errors
+     * @return Number of invalid links
+     * @throws IOException          in case reading or writing fails
+     * @throws InterruptedException in case thread is interrupted
+     */
+    public long run(BufferedReader input, Writer output, PrintStream errors) throws IOException, InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        ArrayDeque<Future<Result>> pending = new ArrayDeque<>(window);
+        processed = 0;
+        invalid = 0;
+        try {
+            String line;
+            while ((line = input.readLine()) != null) {
+                if (pending.size() >= window) {
+                    write(pending.poll(), output, errors);
+                }
+                final String link = line;
+                pending.add(executor.submit(new Callable<Result>() {
+                    @Override
+                    public Result call() {
+                        return beautify(link);
+                    }
+                }));
+            }
+            while (!pending.isEmpty()) {
+                write(pending.poll(), output, errors);
+            }
+            output.flush();
+        } finally {
+            executor.shutdownNow();
+        }
+        return invalid;
+    }
+
+    private Result beautify(String line) {
+        String link = line.trim();
+        if (link.isEmpty()) {
+            return new Result(line, "", null);
+        }
+        try {
+            ParseResult<String> result = engine.tryBeautifyLink(link);
+            return result.isSuccess() ? new Result(line, result.getValue(), null) : new Result(line, null, result.getMessage());
+        } catch (StackOverflowError ex) { //Pathological input for regular expressions
+            return new Result(line, null, "Link is too complex");
+        }
+    }
+
+    private void write(Future<Result> future, Writer output, PrintStream errors) throws IOException, InterruptedException {
+        Result result;
+        try {
+            result = future.get();
+        } catch (ExecutionException ex) {
+            throw new IOException("Worker failed", ex.getCause());
+        }
+        processed++;
+        if (result.error != null) {
+            invalid++;
+            errors.println(processed + ": " + result.input + ": " + result.error);
+            if (skipInvalid) {
+                return;
+            }
+        } else {
+            output.write(result.output);
+        }
+        output.write('\n');
+    }
+
+    /**
+     * Return number of lines processed by the last run
+     * @return Number of lines
+     */
+    public long getProcessed() {
+        return processed;
+    }
+
+    //==========================================================================
+    public static void main(String[] args) throws Exception {
+        int threads = Runtime.getRuntime().availableProcessors();
+        int window = -1;
+        boolean skip = false;
+        String file = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-threads":
+                    threads = Integer.parseInt(args[++i]);
+                    break;
+                case "-window":
+                    window = Integer.parseInt(args[++i]);
+                    break;
+                case "-skip":
+                    skip = true;
+                    break;
+                default:
+                    if (args[i].startsWith("-") || file != null) {
+                        throw new IllegalArgumentException("Unknown argument: " + args[i]);
+                    }
+                    file = args[i];
+            }
+        }
+        if (window < 0) {
+            window = threads * WINDOW_PER_THREAD;
+        }
+
+        long start = System.nanoTime();
+        BulkBeautifier beautifier = new BulkBeautifier(ParserEngine.getDefault(), threads, window, skip);
+        PrintStream errors = new PrintStream(System.err, true, "UTF-8");
+        long invalid;
+        try (InputStream stream = file == null ? System.in : new FileInputStream(file)) {
+            BufferedReader input = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8));
+            Writer output = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+            invalid = beautifier.run(input, output, errors);
+        }
+        errors.println(String.format("Processed: %d, invalid: %d, time: %d ms", beautifier.getProcessed(), invalid,
+                (System.nanoTime() - start) / 1000000));
+        System.exit(invalid > 0 ? 1 : 0);
+    }
+
+}
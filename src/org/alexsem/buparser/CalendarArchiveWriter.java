@@ -0,0 +1,206 @@
+package org.alexsem.buparser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.zip.Deflater;
+
+/**
+ * Class which writes consolidated calendar archive (one file per year or per range of days).
+ * File layout (big-endian):
+ * <pre>
+ * header:  magic (int), version (short), flags (short), first day (long, epoch day), day count (int)
+ * table:   for every day of the range: payload offset (long), payload length (int), day flags (byte)
+ * payload: XML representation of every written CalendarEntry (optionally deflated one by one)
+ * </pre>
+ * Days are written sequentially through one buffered channel, the table is filled in on close
+ * @author Semeniuk A.D.
+ */
+public class CalendarArchiveWriter implements Closeable {
+
+    public static final int MAGIC = 0x42554341; //"BUCA"
+    public static final short VERSION = 1;
+    public static final int HEADER_SIZE = 4 + 2 + 2 + 8 + 4;
+    public static final int TABLE_ENTRY_SIZE = 8 + 4 + 1;
+
+    public static final short ARCHIVE_FLAG_COMPRESSED = 0x01;
+
+    public static final byte DAY_FLAG_PRESENT = 0x01;
+    public static final byte DAY_FLAG_HOLIDAY = 0x02;
+    public static final byte DAY_FLAG_COMPRESSED = 0x04;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final ByteBuffer table;
+    private final LocalDate firstDay;
+    private final int dayCount;
+    private final boolean compress;
+    private final Deflater deflater;
+    private final PayloadBuffer raw = new PayloadBuffer();
+    private final PayloadBuffer deflated = new PayloadBuffer();
+    private final Writer rawWriter = new OutputStreamWriter(raw, StandardCharsets.UTF_8);
+    private final byte[] chunk = new byte[4096];
+
+    private long position;
+    private int lastIndex = -1;
+
+    /**
+     * Creates new archive (existing file is overwritten)
+     * @param file     Archive file
+     * @param firstDay First day of the range
+     * @param dayCount Number of days in the range
+     * @param compress true to deflate every entry separately
+     * @throws IOException in case file can not be created
+     */
+    public CalendarArchiveWriter(File file, LocalDate firstDay, int dayCount, boolean compress) throws IOException {
+        if (dayCount <= 0) {
+            throw new IllegalArgumentException("Day count must be positive: " + dayCount);
+        }
+        this.firstDay = firstDay;
+        this.dayCount = dayCount;
+        this.compress = compress;
+        this.deflater = compress ? new Deflater(Deflater.BEST_COMPRESSION) : null;
+        this.table = ByteBuffer.allocate(dayCount * TABLE_ENTRY_SIZE);
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+        buffer.putInt(MAGIC);
+        buffer.putShort(VERSION);
+        buffer.putShort(compress ? ARCHIVE_FLAG_COMPRESSED : 0);
+        buffer.putLong(firstDay.toEpochDay());
+        buffer.putInt(dayCount);
+        position = HEADER_SIZE + (long) table.capacity();
+        flush();
+        channel.position(position);
+    }
+
+    /**
+     * Creates new archive which covers the whole year
+     * @param file     Archive file
+     * @param year     Year in question
+     * @param compress true to deflate every entry separately
+     * @return Created writer
+     * @throws IOException in case file can not be created
+     */
+    public static CalendarArchiveWriter forYear(File file, int year, boolean compress) throws IOException {
+        LocalDate first = LocalDate.of(year, 1, 1);
+        return new CalendarArchiveWriter(file, first, first.lengthOfYear(), compress);
+    }
+
+    /**
+     * Appends entry for the specific day (days must be written in ascending order)
+     * @param day   Day in question
+     * @param entry Calendar entry
+     * @throws IOException in case write fails
+     */
+    public void write(LocalDate day, CalendarEntry entry) throws IOException {
+        int index = (int) (day.toEpochDay() - firstDay.toEpochDay());
+        if (index < 0 || index >= dayCount) {
+            throw new IllegalArgumentException("Day is out of archive range: " + day);
+        }
+        if (index <= lastIndex) {
+            throw new IllegalStateException("Days must be written in ascending order: " + day);
+        }
+        lastIndex = index;
+
+        byte flags = DAY_FLAG_PRESENT;
+        if (entry.isHoliday()) {
+            flags |= DAY_FLAG_HOLIDAY;
+        }
+        raw.reset();
+        entry.writeXML(rawWriter);
+        rawWriter.flush();
+        PayloadBuffer data = raw;
+        if (compress) {
+            flags |= DAY_FLAG_COMPRESSED;
+            data = deflate(raw);
+        }
+        int length = data.size();
+
+        table.position(index * TABLE_ENTRY_SIZE);
+        table.putLong(position);
+        table.putInt(length);
+        table.put(flags);
+
+        putBytes(data.array(), length);
+        position += length;
+    }
+
+    /**
+     * Deflates data using reusable deflater and buffers
+     * @param data Raw data
+     * @return Buffer with deflated data
+     */
+    private PayloadBuffer deflate(PayloadBuffer data) {
+        deflated.reset();
+        deflater.reset();
+        deflater.setInput(data.array(), 0, data.size());
+        deflater.finish();
+        while (!deflater.finished()) {
+            int count = deflater.deflate(chunk);
+            deflated.write(chunk, 0, count);
+        }
+        return deflated;
+    }
+
+    private void putBytes(byte[] data, int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+            int count = Math.min(buffer.remaining(), length - offset);
+            buffer.put(data, offset, count);
+            offset += count;
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+            table.clear();
+            long tablePosition = HEADER_SIZE;
+            while (table.hasRemaining()) {
+                tablePosition += channel.write(table, tablePosition);
+            }
+        } finally {
+            if (deflater != null) {
+                deflater.end();
+            }
+            channel.close();
+        }
+    }
+
+    /**
+     * Reusable byte buffer which exposes its backing array (no copying)
+     */
+    private static class PayloadBuffer extends ByteArrayOutputStream {
+
+        PayloadBuffer() {
+            super(4096);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+    }
+
+}
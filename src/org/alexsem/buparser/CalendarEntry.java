@@ -1,5 +1,12 @@
 package org.alexsem.buparser;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -35,7 +42,26 @@ public class CalendarEntry {
         }
 
         public String toXML() {
-            return String.format("<r><l>%s</l><c>%s</c></r>", link, comment);
+            StringWriter writer = new StringWriter(64);
+            try {
+                writeXML(writer);
+            } catch (IOException ex) { //Never happens with StringWriter
+                throw new IllegalStateException(ex);
+            }
+            return writer.toString();
+        }
+
+        /**
+         * Writes XML representation of the line directly into the writer
+         * @param writer Writer to write data to
+         * @throws IOException in case write fails
+         */
+        public void writeXML(Writer writer) throws IOException {
+            writer.write("<r><l>");
+            writeText(writer, link);
+            writer.write("</l><c>");
+            writeText(writer, comment);
+            writer.write("</c></r>");
         }
 
         @Override
@@ -64,18 +90,42 @@ public class CalendarEntry {
         return holiday;
     }
     
+    public String getTitle() {
+        return title;
+    }
+
     public void setTitle(String title) {
         this.title = title;
     }
 
+    public String getFeast() {
+        return feast;
+    }
+
     public void setFeast(String feast) {
         this.feast = feast;
     }
 
+    public int getFeastingIndex() {
+        return feastingIndex;
+    }
+
     public void setFeastingIndex(int feastingIndex) {
         this.feastingIndex = feastingIndex;
     }
 
+    public List<Line> getReadingsOld() {
+        return readingsOld;
+    }
+
+    public List<Line> getReadingsApostle() {
+        return readingsApostle;
+    }
+
+    public List<Line> getReadingsGospel() {
+        return readingsGospel;
+    }
+
     public void addReadingsOld(Line line) {
         this.readingsOld.add(line);
     }
@@ -89,32 +139,122 @@ public class CalendarEntry {
     }
 
     public String toXML() {
-        StringBuilder builder = new StringBuilder();
-        builder.append("<entry h=\"").append(holiday).append("\">");
-        builder.append("<t>").append(title).append("</t>");
-        builder.append("<f>").append(feast).append("</f>");
-        builder.append("<fi>").append(feastingIndex).append("</fi>");
-        
-        builder.append("<o>");
+        StringWriter writer = new StringWriter(512);
+        try {
+            writeXML(writer);
+        } catch (IOException ex) { //Never happens with StringWriter
+            throw new IllegalStateException(ex);
+        }
+        return writer.toString();
+    }
+
+    /**
+     * Writes XML representation of the entry directly into the writer.
+     * Markup characters are escaped, numeric character references (like &amp;#769;) are kept as is
+     * @param writer Writer to write data to
+     * @throws IOException in case write fails
+     */
+    public void writeXML(Writer writer) throws IOException {
+        writer.write("<entry h=\"");
+        writer.write(holiday ? "true" : "false");
+        writer.write("\"><t>");
+        writeText(writer, title);
+        writer.write("</t><f>");
+        writeText(writer, feast);
+        writer.write("</f><fi>");
+        writer.write(Integer.toString(feastingIndex));
+        writer.write("</fi>");
+
+        writer.write("<o>");
         for (Line line : readingsOld) {
-            builder.append(line.toXML());
+            line.writeXML(writer);
         }
-        builder.append("</o>");
+        writer.write("</o>");
 
-        builder.append("<a>");
+        writer.write("<a>");
         for (Line line : readingsApostle) {
-            builder.append(line.toXML());
+            line.writeXML(writer);
         }
-        builder.append("</a>");
+        writer.write("</a>");
 
-        builder.append("<g>");
+        writer.write("<g>");
         for (Line line : readingsGospel) {
-            builder.append(line.toXML());
+            line.writeXML(writer);
+        }
+        writer.write("</g>");
+
+        writer.write("</entry>");
+    }
+
+    /**
+     * Writes UTF-8 encoded XML representation of the entry into the stream (stream is not closed)
+     * @param output Stream to write data to
+     * @throws IOException in case write fails
+     */
+    public void writeXML(OutputStream output) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+        writeXML(writer);
+        writer.flush();
+    }
+
+    /**
+     * Writes escaped text (null is written as empty string)
+     * @param writer Writer to write data to
+     * @param text   Text to write
+     * @throws IOException in case write fails
+     */
+    private static void writeText(Writer writer, String text) throws IOException {
+        if (text == null) {
+            return;
+        }
+        int length = text.length();
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            String replacement;
+            switch (text.charAt(i)) {
+                case '<':
+                    replacement = "&lt;";
+                    break;
+                case '>':
+                    replacement = "&gt;";
+                    break;
+                case '"':
+                    replacement = "&quot;";
+                    break;
+                case '&':
+                    replacement = isCharacterReference(text, i) ? null : "&amp;";
+                    break;
+                default:
+                    replacement = null;
+                    break;
+            }
+            if (replacement != null) {
+                writer.write(text, start, i - start);
+                writer.write(replacement);
+                start = i + 1;
+            }
         }
-        builder.append("</g>");
+        writer.write(text, start, length - start);
+    }
 
-        builder.append("</entry>");
-        return builder.toString();
+    /**
+     * Checks whether numeric character reference (&amp;#NNN;) starts at the specific position
+     * @param text  Text in question
+     * @param start Position of the ampersand
+     * @return true if reference is found, false otherwise
+     */
+    private static boolean isCharacterReference(String text, int start) {
+        int i = start + 1;
+        if (i >= text.length() || text.charAt(i) != '#') {
+            return false;
+        }
+        i++;
+        int digits = 0;
+        while (i < text.length() && text.charAt(i) >= '0' && text.charAt(i) <= '9') {
+            i++;
+            digits++;
+        }
+        return digits > 0 && digits <= 7 && i < text.length() && text.charAt(i) == ';';
     }
 
 }
@@ -0,0 +1,356 @@
+package org.alexsem.buparser;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.InflaterInputStream;
+import org.alexsem.buparser.util.XMLParser;
+
+/**
+ * Class which provides read access to generated calendars.
+ * Sources (year directories or archives) are opened once, only requested days are parsed.
+ * Decoded entries are kept in a small bounded cache and are shared between callers, so they must not be modified.
+ * All methods are thread-safe
+ * @author Semeniuk A.D.
+ */
+public class CalendarStore implements Closeable {
+
+    private static final int DEFAULT_CACHE_SIZE = 64;
+
+    /**
+     * Visitor which is used for range iteration
+     */
+    public interface Visitor {
+
+        /**
+         * Called for every day of the range which has an entry
+         * @param day   Day in question
+         * @param entry Calendar entry
+         * @throws IOException in case processing fails
+         */
+        void visit(LocalDate day, CalendarEntry entry) throws IOException;
+    }
+
+    private final TreeMap<Long, Source> sources = new TreeMap<>();
+    private final Map<Long, CalendarEntry> cache;
+
+    /**
+     * Creates store with default cache size
+     */
+    public CalendarStore() {
+        this(DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * Creates store
+     * @param cacheSize Maximum number of decoded entries to hold
+     */
+    public CalendarStore(final int cacheSize) {
+        this.cache = new LinkedHashMap<Long, CalendarEntry>(cacheSize * 4 / 3 + 1, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, CalendarEntry> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * Opens calendar archive (written by CalendarArchiveWriter) and maps it into memory
+     * @param file Archive file
+     * @throws IOException in case file can not be read or has wrong format
+     */
+    public void openArchive(File file) throws IOException {
+        addSource(new ArchiveSource(file));
+    }
+
+    /**
+     * Opens year directory (NNN.xml files and info.csv)
+     * @param directory Year directory
+     * @param year      Year in question
+     * @throws IOException in case info file can not be read
+     */
+    public void openDirectory(File directory, int year) throws IOException {
+        addSource(new DirectorySource(directory, year));
+    }
+
+    private synchronized void addSource(Source source) {
+        Map.Entry<Long, Source> previous = sources.floorEntry(source.last);
+        if (previous != null && previous.getValue().last >= source.first) {
+            throw new IllegalArgumentException("Calendar range is already opened: " + LocalDate.ofEpochDay(source.first));
+        }
+        sources.put(source.first, source);
+    }
+
+    private synchronized Source findSource(long epochDay) {
+        Map.Entry<Long, Source> entry = sources.floorEntry(epochDay);
+        if (entry == null || entry.getValue().last < epochDay) {
+            return null;
+        }
+        return entry.getValue();
+    }
+
+    /**
+     * Returns calendar entry for the specific day
+     * @param day Day in question
+     * @return Calendar entry or null if day is not present in any opened source
+     * @throws IOException in case entry can not be read
+     */
+    public CalendarEntry get(LocalDate day) throws IOException {
+        long epochDay = day.toEpochDay();
+        synchronized (cache) {
+            CalendarEntry entry = cache.get(epochDay);
+            if (entry != null) {
+                return entry;
+            }
+        }
+        Source source = findSource(epochDay);
+        if (source == null || !source.isPresent((int) (epochDay - source.first))) {
+            return null;
+        }
+        CalendarEntry entry = source.read((int) (epochDay - source.first));
+        if (entry != null) {
+            synchronized (cache) {
+                cache.put(epochDay, entry);
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Checks whether specific day is a holiday (entry itself is not parsed)
+     * @param day Day in question
+     * @return true if day is present and marked as holiday, false otherwise
+     */
+    public boolean isHoliday(LocalDate day) {
+        long epochDay = day.toEpochDay();
+        Source source = findSource(epochDay);
+        return source != null && source.isHoliday((int) (epochDay - source.first));
+    }
+
+    /**
+     * Iterates over all present days of the range
+     * @param from    First day (inclusive)
+     * @param to      Last day (inclusive)
+     * @param visitor Visitor to call for every entry
+     * @throws IOException in case entry can not be read or visitor fails
+     */
+    public void forEach(LocalDate from, LocalDate to, Visitor visitor) throws IOException {
+        for (LocalDate day = from; !day.isAfter(to); day = day.plusDays(1)) {
+            CalendarEntry entry = get(day);
+            if (entry != null) {
+                visitor.visit(day, entry);
+            }
+        }
+    }
+
+    /**
+     * Returns first day covered by opened sources
+     * @return First day or null if nothing is opened
+     */
+    public synchronized LocalDate getFirstDay() {
+        return sources.isEmpty() ? null : LocalDate.ofEpochDay(sources.firstKey());
+    }
+
+    /**
+     * Returns last day covered by opened sources
+     * @return Last day or null if nothing is opened
+     */
+    public synchronized LocalDate getLastDay() {
+        return sources.isEmpty() ? null : LocalDate.ofEpochDay(sources.lastEntry().getValue().last);
+    }
+
+    @Override
+    public synchronized void close() {
+        sources.clear();
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    //==========================================================================
+    /**
+     * One opened calendar source which covers continuous range of days
+     */
+    private static abstract class Source {
+
+        protected final long first;
+        protected final long last;
+        protected final byte[] flags;
+
+        protected Source(long first, int dayCount) {
+            this.first = first;
+            this.last = first + dayCount - 1;
+            this.flags = new byte[dayCount];
+        }
+
+        boolean isPresent(int index) {
+            return (flags[index] & CalendarArchiveWriter.DAY_FLAG_PRESENT) != 0;
+        }
+
+        boolean isHoliday(int index) {
+            return (flags[index] & CalendarArchiveWriter.DAY_FLAG_HOLIDAY) != 0;
+        }
+
+        abstract CalendarEntry read(int index) throws IOException;
+    }
+
+    /**
+     * Source backed by memory-mapped archive file
+     */
+    private static class ArchiveSource extends Source {
+
+        private final MappedByteBuffer data;
+        private final long[] offsets;
+        private final int[] lengths;
+
+        ArchiveSource(File file) throws IOException {
+            this(file, map(file));
+        }
+
+        private ArchiveSource(File file, MappedByteBuffer data) throws IOException {
+            super(readFirstDay(file, data), data.getInt(CalendarArchiveWriter.HEADER_SIZE - 4));
+            this.data = data;
+            int dayCount = flags.length;
+            this.offsets = new long[dayCount];
+            this.lengths = new int[dayCount];
+            ByteBuffer table = data.duplicate();
+            table.position(CalendarArchiveWriter.HEADER_SIZE);
+            for (int i = 0; i < dayCount; i++) {
+                offsets[i] = table.getLong();
+                lengths[i] = table.getInt();
+                flags[i] = table.get();
+            }
+        }
+
+        private static MappedByteBuffer map(File file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+        }
+
+        private static long readFirstDay(File file, ByteBuffer data) throws IOException {
+            if (data.capacity() < CalendarArchiveWriter.HEADER_SIZE || data.getInt(0) != CalendarArchiveWriter.MAGIC) {
+                throw new IOException("Not a calendar archive: " + file);
+            }
+            if (data.getShort(4) != CalendarArchiveWriter.VERSION) {
+                throw new IOException("Unsupported calendar archive version: " + data.getShort(4));
+            }
+            return data.getLong(8);
+        }
+
+        @Override
+        CalendarEntry read(int index) throws IOException {
+            ByteBuffer slice = data.duplicate();
+            slice.position((int) offsets[index]);
+            slice.limit((int) offsets[index] + lengths[index]);
+            InputStream input = new ByteBufferInputStream(slice);
+            if ((flags[index] & CalendarArchiveWriter.DAY_FLAG_COMPRESSED) != 0) {
+                input = new InflaterInputStream(input);
+            }
+            try {
+                return XMLParser.parseCalendarEntry(input);
+            } catch (IOException ex) {
+                throw ex;
+            } catch (Exception ex) {
+                throw new IOException("Calendar entry can not be parsed: " + LocalDate.ofEpochDay(first + index), ex);
+            }
+        }
+    }
+
+    /**
+     * Source backed by year directory (holidays are taken from info.csv, day files are read on demand)
+     */
+    private static class DirectorySource extends Source {
+
+        private final File directory;
+
+        DirectorySource(File directory, int year) throws IOException {
+            super(LocalDate.of(year, 1, 1).toEpochDay(), LocalDate.of(year, 1, 1).lengthOfYear());
+            this.directory = directory;
+            File info = new File(directory, "info.csv");
+            if (!info.exists()) {
+                throw new FileNotFoundException("Info file not found: " + info);
+            }
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(info), StandardCharsets.UTF_8))) {
+                String row;
+                int month = 1;
+                while ((row = reader.readLine()) != null && month <= 12) {
+                    if (!row.isEmpty()) {
+                        int index = LocalDate.of(year, month, 1).getDayOfYear() - 1;
+                        for (String cell : row.split(",")) {
+                            byte value = CalendarArchiveWriter.DAY_FLAG_PRESENT;
+                            if (cell.length() > 0 && cell.charAt(0) == '1') {
+                                value |= CalendarArchiveWriter.DAY_FLAG_HOLIDAY;
+                            }
+                            flags[index++] = value;
+                        }
+                    }
+                    month++;
+                }
+            }
+        }
+
+        @Override
+        CalendarEntry read(int index) throws IOException {
+            File file = new File(directory, String.format("%03d.xml", index + 1));
+            if (!file.exists()) {
+                return null;
+            }
+            try {
+                return XMLParser.parseCalendarEntry(new BufferedInputStream(new FileInputStream(file)));
+            } catch (IOException ex) {
+                throw ex;
+            } catch (Exception ex) {
+                throw new IOException("Calendar entry can not be parsed: " + file, ex);
+            }
+        }
+    }
+
+    /**
+     * Input stream which reads data from byte buffer without copying it
+     */
+    private static class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(len, buffer.remaining());
+            buffer.get(b, off, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+}
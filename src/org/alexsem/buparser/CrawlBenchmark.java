@@ -0,0 +1,207 @@
+package org.alexsem.buparser;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import org.alexsem.buparser.util.StagedPipeline;
+
+/**
+ * Class which measures full-year crawl against local stub server (no live site is involved).
+ * Stub (see StubServer) serves recorded or synthetic pages with configurable latency, jitter, error rate
+ * and throttling (429 when more than -throttle requests are in flight, 0 to disable).
+ * <pre>
+ * Usage: CrawlBenchmark [-year 2021] [-runs 3] [-latency 50] [-jitter 20] [-errors 0.01]
+ *                       [-throttle 0] [-retry-after -1] [-recordings dir] [-output dir] [-rate 1000] [-archive]
+ * </pre>
+ * Endpoints and output directory are redirected through system properties which are read by BuParser,
+ * so they are set before BuParser is first touched
+ * @author Semeniuk A.D.
+ */
+public class CrawlBenchmark {
+
+    private static final long SAMPLE_INTERVAL = 10;
+
+    //==========================================================================
+    /**
+     * Thread which sums bytes allocated by all threads (sampled periodically, so bytes
+     * allocated by short-lived threads after their last sample are not counted)
+     */
+    private static class AllocationSampler extends Thread {
+
+        private final com.sun.management.ThreadMXBean bean;
+        private final Map<Long, Long> initial = new HashMap<>();
+        private final Map<Long, Long> latest = new HashMap<>();
+        private volatile boolean running = true;
+
+        AllocationSampler(com.sun.management.ThreadMXBean bean) {
+            super("buparser-benchmark-sampler");
+            setDaemon(true);
+            this.bean = bean;
+            for (long id : bean.getAllThreadIds()) {
+                initial.put(id, bean.getThreadAllocatedBytes(id));
+            }
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                sample();
+                try {
+                    Thread.sleep(SAMPLE_INTERVAL);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+            }
+        }
+
+        private synchronized void sample() {
+            for (long id : bean.getAllThreadIds()) {
+                long bytes = bean.getThreadAllocatedBytes(id);
+                if (bytes >= 0) {
+                    latest.put(id, bytes);
+                }
+            }
+        }
+
+        long finish() throws InterruptedException {
+            running = false;
+            interrupt();
+            join();
+            sample();
+            long total = 0;
+            //Sampler thread is stopped, so maps are not modified any more
+            for (Map.Entry<Long, Long> entry : latest.entrySet()) {
+                Long start = initial.get(entry.getKey());
+                total += entry.getValue() - (start == null ? 0 : start);
+            }
+            return total;
+        }
+    }
+
+    private static AllocationSampler startSampler() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean) || !((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+            return null;
+        }
+        ((com.sun.management.ThreadMXBean) bean).setThreadAllocatedMemoryEnabled(true);
+        AllocationSampler sampler = new AllocationSampler((com.sun.management.ThreadMXBean) bean);
+        sampler.start();
+        return sampler;
+    }
+
+    //==========================================================================
+    public static void main(String[] args) throws Exception {
+        int year = 2021;
+        int latency = 50;
+        int jitter = 20;
+        double errorRate = 0.01;
+        int throttle = 0;
+        int retryAfter = -1;
+        File recordings = null;
+        int runs = 3;
+        boolean archive = false;
+        String output = null;
+        String rate = "1000";
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-year":
+                    year = Integer.parseInt(args[++i]);
+                    break;
+                case "-runs":
+                    runs = Integer.parseInt(args[++i]);
+                    break;
+                case "-latency":
+                    latency = Integer.parseInt(args[++i]);
+                    break;
+                case "-jitter":
+                    jitter = Integer.parseInt(args[++i]);
+                    break;
+                case "-errors":
+                    errorRate = Double.parseDouble(args[++i]);
+                    break;
+                case "-throttle":
+                    throttle = Integer.parseInt(args[++i]);
+                    break;
+                case "-retry-after":
+                    retryAfter = Integer.parseInt(args[++i]);
+                    break;
+                case "-recordings":
+                    recordings = new File(args[++i]);
+                    break;
+                case "-output":
+                    output = args[++i];
+                    break;
+                case "-rate":
+                    rate = args[++i];
+                    break;
+                case "-archive":
+                    archive = true;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown argument: " + args[i]);
+            }
+        }
+
+        //--- Start stub server ---
+        StubServer server = new StubServer(latency, jitter, errorRate, recordings, throttle, retryAfter);
+        String url = server.start();
+
+        //--- Redirect parser (must happen before BuParser is initialized) ---
+        if (output == null) {
+            output = Files.createTempDirectory("buparser-benchmark").toString();
+        }
+        System.setProperty("buparser.url", url);
+        System.setProperty("buparser.output", output);
+        System.setProperty("buparser.fetch.rate", rate);
+
+        PrintStream console = System.out;
+        console.println(String.format("Stub: latency %d ms, jitter %d ms, error rate %.3f, throttle: %d, recordings: %s, output: %s",
+                latency, jitter, errorRate, throttle, recordings == null ? "synthetic" : recordings, output));
+        console.println(String.format("%-4s %8s %10s %10s %10s %12s %12s", "Run", "Days", "Time, ms", "Days/sec", "p50, ms", "p99, ms", "Alloc, MB"));
+        PrintStream silent = new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        });
+        try {
+            for (int run = 1; run <= runs; run++) {
+                AllocationSampler sampler = startSampler();
+                long start = System.nanoTime();
+                StagedPipeline<?, ?, ?> pipeline;
+                System.setOut(silent);
+                try {
+                    pipeline = BuParser.parseYear(year, archive);
+                } finally {
+                    System.setOut(console);
+                }
+                long elapsed = System.nanoTime() - start;
+                long allocated = sampler == null ? -1 : sampler.finish();
+                if (pipeline == null) {
+                    console.println("Run " + run + " failed");
+                    continue;
+                }
+                int days = pipeline.getCompletedCount();
+                console.println(String.format("%-4d %8d %10d %10.1f %10.1f %12.1f %12.1f", run, days, elapsed / 1000000,
+                        days / (elapsed / 1e9), pipeline.getLatencyPercentile(50) / 1e6, pipeline.getLatencyPercentile(99) / 1e6,
+                        allocated < 0 ? Double.NaN : allocated / 1048576.0));
+                if (run == runs) {
+                    pipeline.report(console);
+                }
+            }
+            console.println(String.format("Stub requests: %d, throttled: %d, max in flight: %d",
+                    server.getRequestCount(), server.getThrottledCount(), server.getMaxInFlight()));
+        } finally {
+            server.stop();
+        }
+    }
+
+}
@@ -0,0 +1,307 @@
+package org.alexsem.buparser;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.alexsem.buparser.model.Line;
+import org.alexsem.buparser.model.LocationSet;
+import org.alexsem.buparser.model.Metadata;
+import org.alexsem.buparser.util.LocationCalculator;
+import org.alexsem.buparser.util.VerseOrdinals;
+import org.alexsem.buparser.util.VerseRangeSet;
+
+/**
+ * Graph of parallel passages between verses, stored in compressed sparse row form:
+ * offsets[ordinal]..offsets[ordinal + 1] delimit verse's part of ranges array, which holds
+ * start and end (inclusive) ordinals of every parallel range. Ranges of every verse are sorted and merged.
+ * Every reference is stored in both directions (if A refers to B, B refers to A as well)
+ * @author Semeniuk A.D.
+ */
+public class CrossReferenceGraph {
+
+    private static final int MAGIC = 0x42555852; //"BUXR"
+    private static final short VERSION = 1;
+
+    private final VerseOrdinals ordinals;
+    private final int[] offsets;
+    private final int[] ranges;
+
+    private CrossReferenceGraph(VerseOrdinals ordinals, int[] offsets, int[] ranges) {
+        this.ordinals = ordinals;
+        this.offsets = offsets;
+        this.ranges = ranges;
+    }
+
+    //==========================================================================
+    /**
+     * Return number of parallel ranges of the specific verse
+     * @param ordinal Verse ordinal
+     * @return Range count
+     */
+    public int getDegree(int ordinal) {
+        return (offsets[ordinal + 1] - offsets[ordinal]) / 2;
+    }
+
+    /**
+     * Return first verse of the specific parallel range
+     * @param ordinal Verse ordinal
+     * @param index   Range index (0 to degree - 1)
+     * @return Verse ordinal
+     */
+    public int getRangeStart(int ordinal, int index) {
+        return ranges[offsets[ordinal] + index * 2];
+    }
+
+    /**
+     * Return last verse of the specific parallel range (inclusive)
+     * @param ordinal Verse ordinal
+     * @param index   Range index (0 to degree - 1)
+     * @return Verse ordinal
+     */
+    public int getRangeEnd(int ordinal, int index) {
+        return ranges[offsets[ordinal] + index * 2 + 1];
+    }
+
+    /**
+     * Return parallels of the specific verse
+     * @param ordinal Verse ordinal
+     * @return Set of parallel verses
+     */
+    public VerseRangeSet getParallels(int ordinal) {
+        return VerseRangeSet.ofRanges(ranges, offsets[ordinal], offsets[ordinal + 1]);
+    }
+
+    /**
+     * Return parallels of all verses of the reading (verses of the reading itself are excluded)
+     * @param set Reading
+     * @return Set of parallel verses
+     */
+    public VerseRangeSet getParallels(LocationSet set) {
+        VerseRangeSet reading = VerseRangeSet.of(ordinals, set);
+        int count = 0;
+        for (int i = 0; i < reading.getRangeCount(); i++) {
+            count += offsets[reading.getRangeEnd(i) + 1] - offsets[reading.getRangeStart(i)];
+        }
+        if (count == 0) {
+            return VerseRangeSet.EMPTY;
+        }
+        int[] collected = new int[count];
+        int size = 0;
+        for (int i = 0; i < reading.getRangeCount(); i++) {
+            int from = offsets[reading.getRangeStart(i)];
+            int to = offsets[reading.getRangeEnd(i) + 1];
+            System.arraycopy(ranges, from, collected, size, to - from);
+            size += to - from;
+        }
+        return VerseRangeSet.ofRanges(collected, 0, size).difference(reading);
+    }
+
+    //==========================================================================
+    /**
+     * Loads graph from file
+     * @param file     Graph file
+     * @param ordinals Verse ordinals the graph was built with
+     * @return Loaded graph
+     * @throws IOException in case file can not be read or has wrong format
+     */
+    public static CrossReferenceGraph load(File file, VerseOrdinals ordinals) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        if (buffer.remaining() < 10 || buffer.getInt() != MAGIC || buffer.getShort() != VERSION) {
+            throw new IOException("Not a cross-reference graph: " + file);
+        }
+        int verseCount = buffer.getInt();
+        if (verseCount != ordinals.getVerseCount()) {
+            throw new IOException("Cross-reference graph was built for different metadata: " + file);
+        }
+        int[] offsets = new int[verseCount + 1];
+        buffer.asIntBuffer().get(offsets);
+        buffer.position(buffer.position() + offsets.length * 4);
+        int[] ranges = new int[offsets[verseCount]];
+        buffer.asIntBuffer().get(ranges);
+        return new CrossReferenceGraph(ordinals, offsets, ranges);
+    }
+
+    /**
+     * Saves graph to file
+     * @param file Graph file
+     * @throws IOException in case file can not be written
+     */
+    public void save(File file) throws IOException {
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            output.writeInt(MAGIC);
+            output.writeShort(VERSION);
+            output.writeInt(offsets.length - 1);
+            for (int offset : offsets) {
+                output.writeInt(offset);
+            }
+            for (int value : ranges) {
+                output.writeInt(value);
+            }
+        }
+    }
+
+    //==========================================================================
+    /**
+     * Class which resolves parallel references of lines and builds the graph
+     */
+    public static class Builder {
+
+        private final Metadata metadata;
+        private final VerseOrdinals ordinals;
+        private final Map<String, VerseRangeSet> resolved = new HashMap<>();
+        private int[] sources = new int[1024];
+        private int[] starts = new int[1024];
+        private int[] ends = new int[1024];
+        private int size = 0;
+        private int unresolved = 0;
+
+        /**
+         * Creates empty builder
+         * @param metadata Metadata which is used to resolve references
+         * @param ordinals Verse ordinals built from the same metadata
+         */
+        public Builder(Metadata metadata, VerseOrdinals ordinals) {
+            this.metadata = metadata;
+            this.ordinals = ordinals;
+        }
+
+        /**
+         * Adds parallel references of the specific verse
+         * @param ordinal Verse ordinal
+         * @param line    Line with parallel references
+         * @return This builder
+         */
+        public Builder add(int ordinal, Line line) {
+            return add(ordinal, line.getParallel());
+        }
+
+        /**
+         * Adds parallel references of the specific verse
+         * @param ordinal  Verse ordinal
+         * @param parallel References (in LocationCalculator format)
+         * @return This builder
+         */
+        public Builder add(int ordinal, String[] parallel) {
+            if (ordinal < 0 || ordinal >= ordinals.getVerseCount()) {
+                throw new IndexOutOfBoundsException("Verse ordinal out of bounds: " + ordinal);
+            }
+            for (String link : parallel) {
+                VerseRangeSet target = resolve(link.trim());
+                for (int i = 0; i < target.getRangeCount(); i++) {
+                    int start = target.getRangeStart(i);
+                    int end = target.getRangeEnd(i);
+                    addEdge(ordinal, start, end);
+                    for (int verse = start; verse <= end; verse++) { //Reverse direction
+                        addEdge(verse, ordinal, ordinal);
+                    }
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Adds parallel references of all verses of text store
+         * @param store Verse text store
+         * @return This builder
+         */
+        public Builder addAll(VerseTextStore store) {
+            for (int ordinal = 0; ordinal < ordinals.getVerseCount(); ordinal++) {
+                String parallel = store.getText(ordinal, VerseTextStore.FIELD_PARALLEL);
+                if (!parallel.isEmpty()) {
+                    add(ordinal, parallel.split(";"));
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Return number of references which could not be resolved
+         * @return Reference count
+         */
+        public int getUnresolvedCount() {
+            return unresolved;
+        }
+
+        /**
+         * Resolves reference into verse ranges (every distinct reference is parsed only once)
+         * @param link Reference
+         * @return Set of verses
+         */
+        private VerseRangeSet resolve(String link) {
+            if (link.isEmpty()) {
+                return VerseRangeSet.EMPTY;
+            }
+            VerseRangeSet result = resolved.get(link);
+            if (result == null) {
+                LocationSet set = LocationCalculator.parseSearchString(metadata, link);
+                result = VerseRangeSet.of(ordinals, set);
+                if (result.isEmpty()) {
+                    unresolved++;
+                }
+                resolved.put(link, result);
+            }
+            return result;
+        }
+
+        private void addEdge(int source, int start, int end) {
+            if (size == sources.length) {
+                sources = Arrays.copyOf(sources, size * 2);
+                starts = Arrays.copyOf(starts, size * 2);
+                ends = Arrays.copyOf(ends, size * 2);
+            }
+            sources[size] = source;
+            starts[size] = start;
+            ends[size] = end;
+            size++;
+        }
+
+        /**
+         * Builds graph (edges are grouped by source verse, ranges of every verse are sorted and merged)
+         * @return Built graph
+         */
+        public CrossReferenceGraph build() {
+            int verseCount = ordinals.getVerseCount();
+            int[] offsets = new int[verseCount + 1];
+            for (int i = 0; i < size; i++) {
+                offsets[sources[i] + 1]++;
+            }
+            for (int i = 0; i < verseCount; i++) {
+                offsets[i + 1] += offsets[i];
+            }
+            long[] grouped = new long[size]; //start << 32 | end, grouped by source
+            int[] positions = Arrays.copyOf(offsets, verseCount);
+            for (int i = 0; i < size; i++) {
+                grouped[positions[sources[i]]++] = ((long) starts[i] << 32) | ends[i];
+            }
+            int[] ranges = new int[size * 2];
+            int count = 0;
+            for (int verse = 0; verse < verseCount; verse++) {
+                int from = offsets[verse];
+                int to = offsets[verse + 1];
+                offsets[verse] = count;
+                Arrays.sort(grouped, from, to);
+                int verseStart = count;
+                for (int i = from; i < to; i++) {
+                    int start = (int) (grouped[i] >>> 32);
+                    int end = (int) grouped[i];
+                    if (count > verseStart && start <= ranges[count - 1] + 1) { //Overlaps or touches previous range
+                        ranges[count - 1] = Math.max(ranges[count - 1], end);
+                    } else {
+                        ranges[count++] = start;
+                        ranges[count++] = end;
+                    }
+                }
+            }
+            offsets[verseCount] = count;
+            return new CrossReferenceGraph(ordinals, offsets, Arrays.copyOf(ranges, count));
+        }
+    }
+
+}
@@ -0,0 +1,219 @@
+package org.alexsem.buparser;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.alexsem.buparser.util.FetchScheduler;
+import org.alexsem.buparser.util.ResponseReader;
+
+/**
+ * Class which checks FetchScheduler against local stub server which simulates throttling
+ * (429 when more than -throttle requests are in flight, no live site is involved).
+ * Two scenarios are run by many client threads:
+ * <ol>
+ * <li>Retry-After: 0 - only concurrency limit reacts to throttling, it must converge to the stub's limit</li>
+ * <li>Retry-After: N - after every 429 no request may start until N seconds pass</li>
+ * </ol>
+ * <pre>
+ * Usage: FetchSchedulerCheck [-threads 16] [-throttle 4] [-requests 600] [-retry-after 1] [-latency 20]
+ * </pre>
+ * Exit code is 1 if some check fails
+ * @author Semeniuk A.D.
+ */
+public class FetchSchedulerCheck {
+
+    private static final double RATE = 1000;
+    private static final int BURST = 16;
+
+    /**
+     * Events which are recorded by client threads (times are taken from System.nanoTime)
+     */
+    private static class Log {
+
+        private final List<Long> acquired = new ArrayList<>();
+        private final List<long[]> throttled = new ArrayList<>(); //Release start, release end, Retry-After
+        private final List<Integer> limits = new ArrayList<>(); //Concurrency limit after every release
+
+        synchronized void acquired(long time) {
+            acquired.add(time);
+        }
+
+        synchronized void released(long start, long end, int status, String retryAfter, int limit) {
+            limits.add(limit);
+            if (status == 429 && retryAfter != null) {
+                throttled.add(new long[]{start, end, Long.parseLong(retryAfter.trim()) * 1000000000L});
+            }
+        }
+    }
+
+    //==========================================================================
+    /**
+     * Issues requests through scheduler from several threads
+     * @param url       Page URL
+     * @param scheduler Scheduler in question
+     * @param threads   Number of client threads
+     * @param requests  Total number of requests
+     * @return Recorded events
+     * @throws InterruptedException in case thread is interrupted
+     */
+    private static Log run(final String url, final FetchScheduler scheduler, int threads, final int requests) throws InterruptedException {
+        final Log log = new Log();
+        final AtomicInteger next = new AtomicInteger();
+        Thread[] clients = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            clients[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (next.getAndIncrement() < requests) {
+                            scheduler.acquire();
+                            long start = System.nanoTime();
+                            log.acquired(start);
+                            int status = -1;
+                            String retryAfter = null;
+                            try {
+                                HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+                                ResponseReader.prepare(connection);
+                                status = connection.getResponseCode();
+                                retryAfter = connection.getHeaderField("Retry-After");
+                                if (status == 200) {
+                                    ResponseReader.read(connection);
+                                } else {
+                                    connection.disconnect();
+                                }
+                            } catch (IOException ex) {
+                                status = -1;
+                            }
+                            long releaseStart = System.nanoTime();
+                            scheduler.release(status, releaseStart - start, retryAfter);
+                            log.released(releaseStart, System.nanoTime(), status, retryAfter, scheduler.getConcurrencyLimit());
+                        }
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }, "buparser-check-client-" + i);
+            clients[i].start();
+        }
+        for (Thread client : clients) {
+            client.join();
+        }
+        return log;
+    }
+
+    /**
+     * Checks that concurrency limit settles around the throttling limit of the stub.
+     * Limit oscillates (it grows by one per window and is halved on 429), so average of the second half
+     * is checked, while peaks above twice the stub limit must be rare
+     * @param threads  Number of client threads (also initial and maximum limit)
+     * @param throttle Number of requests in flight above which stub answers 429
+     * @param requests Total number of requests
+     * @param latency  Stub response delay (in milliseconds)
+     * @return true if check passes
+     * @throws Exception in case stub can not be started or thread is interrupted
+     */
+    private static boolean checkConvergence(int threads, int throttle, int requests, int latency) throws Exception {
+        StubServer server = new StubServer(latency, 0, 0, null, throttle, 0);
+        String url = server.start() + "/rpc/date=2021-03-01/kld.xml";
+        FetchScheduler scheduler = new FetchScheduler(RATE, BURST, 1, threads, threads);
+        Log log;
+        try {
+            log = run(url, scheduler, threads, requests);
+        } finally {
+            server.stop();
+        }
+        double sum = 0;
+        int max = 0;
+        int peaks = 0;
+        List<Integer> settled = log.limits.subList(log.limits.size() / 2, log.limits.size());
+        for (int limit : settled) {
+            sum += limit;
+            max = Math.max(max, limit);
+            if (limit > 2 * throttle) {
+                peaks++;
+            }
+        }
+        double average = sum / settled.size();
+        double peakShare = (double) peaks / settled.size();
+        double throttledShare = (double) server.getThrottledCount() / server.getRequestCount();
+        boolean passed = average >= throttle / 2.0 && average <= throttle + 1.5 && peakShare < 0.05 && throttledShare < 0.2;
+        System.out.println(String.format("Convergence: initial limit %d, stub limit %d, settled limit avg %.2f max %d (above %d: %.1f%%), throttled %d of %d (%.1f%%): %s",
+                threads, throttle, average, max, 2 * throttle, peakShare * 100, server.getThrottledCount(), server.getRequestCount(),
+                throttledShare * 100, passed ? "OK" : "FAILED"));
+        return passed;
+    }
+
+    /**
+     * Checks that no request is started while scheduler is paused by Retry-After
+     * @param threads    Number of client threads (also initial and maximum limit)
+     * @param throttle   Number of requests in flight above which stub answers 429
+     * @param requests   Total number of requests
+     * @param latency    Stub response delay (in milliseconds)
+     * @param retryAfter Value of Retry-After header (in seconds)
+     * @return true if check passes
+     * @throws Exception in case stub can not be started or thread is interrupted
+     */
+    private static boolean checkRetryAfter(int threads, int throttle, int requests, int latency, int retryAfter) throws Exception {
+        StubServer server = new StubServer(latency, 0, 0, null, throttle, retryAfter);
+        String url = server.start() + "/rpc/date=2021-03-01/kld.xml";
+        FetchScheduler scheduler = new FetchScheduler(RATE, BURST, 1, threads, threads);
+        Log log;
+        long started = System.nanoTime();
+        try {
+            log = run(url, scheduler, threads, requests);
+        } finally {
+            server.stop();
+        }
+        long elapsed = System.nanoTime() - started;
+        int violations = 0;
+        for (long[] event : log.throttled) {
+            for (long acquired : log.acquired) {
+                //Request acquired after 429 was reported must wait until pause ends
+                if (acquired > event[1] && acquired < event[0] + event[2]) {
+                    violations++;
+                }
+            }
+        }
+        boolean passed = !log.throttled.isEmpty() && violations == 0;
+        System.out.println(String.format("Retry-After: %d s, throttled %d, requests started during pause: %d, time %d ms: %s",
+                retryAfter, log.throttled.size(), violations, elapsed / 1000000, passed ? "OK" : "FAILED"));
+        return passed;
+    }
+
+    //==========================================================================
+    public static void main(String[] args) throws Exception {
+        int threads = 16;
+        int throttle = 4;
+        int requests = 600;
+        int retryAfter = 1;
+        int latency = 20;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-threads":
+                    threads = Integer.parseInt(args[++i]);
+                    break;
+                case "-throttle":
+                    throttle = Integer.parseInt(args[++i]);
+                    break;
+                case "-requests":
+                    requests = Integer.parseInt(args[++i]);
+                    break;
+                case "-retry-after":
+                    retryAfter = Integer.parseInt(args[++i]);
+                    break;
+                case "-latency":
+                    latency = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown argument: " + args[i]);
+            }
+        }
+        boolean passed = checkConvergence(threads, throttle, requests, latency);
+        passed &= checkRetryAfter(threads, throttle, requests / 4, latency, retryAfter);
+        System.exit(passed ? 0 : 1);
+    }
+
+}
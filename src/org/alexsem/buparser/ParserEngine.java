@@ -0,0 +1,798 @@
+package org.alexsem.buparser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.alexsem.buparser.CalendarEntry.Line;
+import org.alexsem.buparser.model.Book;
+import org.alexsem.buparser.model.ChapterProvider;
+import org.alexsem.buparser.model.LocationSet;
+import org.alexsem.buparser.model.Metadata;
+import org.alexsem.buparser.util.GuardedCharSequence;
+import org.alexsem.buparser.util.GuardedCharSequence.LimitExceededException;
+import org.alexsem.buparser.util.LocationCalculator;
+import org.alexsem.buparser.util.ParseException;
+import org.alexsem.buparser.util.ParseResult;
+import org.alexsem.buparser.util.ReadingsExtractor;
+import org.alexsem.buparser.util.ReadingsSegmenter;
+import org.alexsem.buparser.util.ReadingsSegmenter.Segment;
+import org.alexsem.buparser.util.RewriteRule;
+import org.alexsem.buparser.util.RomanNumbers;
+import org.alexsem.buparser.util.XMLParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+/**
+ * Class which parses and validates readings against specific metadata.
+ * Engine holds frozen metadata, compiled validator and caches. It is immutable
+ * (caches are concurrent and hold immutable values only), so one instance may be used
+ * from any number of threads, and engines built from different metadata may coexist in one JVM
+ * @author Semeniuk A.D.
+ */
+public final class ParserEngine {
+
+    private static final Pattern PATTERN_READINGS = Pattern.compile("<div class=\"read\">(.*?)</div> *?<div class");
+    private static final Pattern PATTERN_READING = Pattern.compile("([^<]*?)[,:\\-]? *?<a.*?>([^<]*?)[.,]?</a>( *?<div.*?</div>)? *?");
+    /**
+     * Two lines: book, digit, book, digit at the end. Atomic groups take the earliest book and digit,
+     * which is enough for the match, so text is not backtracked (same as {@code ((.*?)[,:\-]? *?(([123] )?[А-Я][а-я]+?\.,.*?\d)\.?){2}})
+     */
+    private static final Pattern PATTERN_DOUBLE_LINE = Pattern.compile("(?>.*?[А-Я][а-я]+\\.,)(?>.*?\\d)(?>.*?[А-Я][а-я]+\\.,).*\\d\\.?");
+    private static final Pattern PATTERN_ROMAN = Pattern.compile("([IVXLCDM]+), ");
+    private static final Pattern PATTERN_COMMENT_SEPARATOR = Pattern.compile("\\d\\.");
+    private static final Pattern PATTERN_COMMENT_LEFT = Pattern.compile("(.*?)[,:\\-]? *?(([123][ _])?[А-Я][а-я]++\\.,.*\\d)( \\(Недели \\d{1,2}-й\\))?\\.?");
+    /**
+     * Atomic groups take the earliest "bible/", "/" and ")," (same as {@code <a.*?bible/(.+?)/.*?\)(,.*)</a>})
+     */
+    private static final Pattern PATTERN_MISSING_BOOK = Pattern.compile("<a(?>.*?bible/)(?>(.+?)/)(?>.*?\\)(?=,))(,.*)</a>");
+    private static final Pattern PATTERN_SUBSTITUTE = Pattern.compile("(.*?) - (за (понедельник|вторник|среду|четверг|пятницу|субботу|воскресенье) и за (понедельник|вторник|среду|четверг|пятницу|субботу|воскресенье))( \\(под зачало\\))?");
+    private static final Pattern PATTERN_COMPLEX_GROUPS1 = Pattern.compile("([123]?[А-Я][а-я]*\\. ([0-9]{1,3}):.+?),([0-9]{1,3}) - ([0-9]{1,3}:[0-9]{1,3})");
+    private static final Pattern PATTERN_COMPLEX_GROUPS2 = Pattern.compile("([123]?[А-Я][а-я]*\\. .*?[0-9]{1,3}:[0-9]{1,3} - ([0-9]{1,3}):[0-9]{1,3}),(.+?)");
+
+    private static final String DEFAULT_METADATA = "resources/meta.xml";
+    private static final int CACHE_LIMIT = 4096;
+    private static final int MATCH_LENGTH_LIMIT = 4096;
+    private static final long MATCH_STEP_BUDGET = 1000000;
+
+    private final Metadata metadata;
+    private final Pattern validatorReadings;
+    private final ConcurrentHashMap<String, Integer> firstBooks = new ConcurrentHashMap<>();
+
+    /**
+     * Creates engine (metadata is frozen and must not be modified afterwards)
+     * @param metadata Metadata to use
+     */
+    public ParserEngine(Metadata metadata) {
+        metadata.freeze();
+        this.metadata = metadata;
+        this.validatorReadings = Pattern.compile(LocationCalculator.generateValidationPattern(metadata));
+    }
+
+    /**
+     * Creates engine from metadata file (meta.xml format)
+     * @param input Stream to read metadata from
+     * @return Created engine
+     * @throws XmlPullParserException in case metadata is not well-formed
+     * @throws IOException            in case reading fails
+     */
+    public static ParserEngine load(InputStream input) throws XmlPullParserException, IOException {
+        return load(input, null);
+    }
+
+    /**
+     * Creates engine from metadata file, chapters of books which are listed without them
+     * are loaded from provider on first access
+     * @param input    Stream to read metadata from
+     * @param chapters Chapter provider (may be null)
+     * @return Created engine
+     * @throws XmlPullParserException in case metadata is not well-formed
+     * @throws IOException            in case reading fails
+     */
+    public static ParserEngine load(InputStream input, ChapterProvider chapters) throws XmlPullParserException, IOException {
+        List<Book> books = XMLParser.parseMetadata(input);
+        Metadata metadata = new Metadata();
+        for (Book book : books) {
+            metadata.addBook(book);
+        }
+        metadata.setChapterProvider(chapters);
+        return new ParserEngine(metadata);
+    }
+
+    /**
+     * Holder of the default engine (loaded on first use)
+     */
+    private static class DefaultHolder {
+
+        static final ParserEngine INSTANCE;
+
+        static {
+            try (InputStream stream = ParserEngine.class.getClassLoader().getResourceAsStream(DEFAULT_METADATA)) {
+                INSTANCE = load(stream);
+            } catch (Exception ex) {
+                throw new RuntimeException("Metadata was not properly loaded!!!", ex);
+            }
+        }
+    }
+
+    /**
+     * Return engine built from the bundled metadata
+     * @return Default engine
+     */
+    public static ParserEngine getDefault() {
+        return DefaultHolder.INSTANCE;
+    }
+
+    /**
+     * Return metadata which is used for parsing and validation
+     * @return Frozen metadata
+     */
+    public Metadata getMetadata() {
+        return metadata;
+    }
+
+    //==========================================================================
+    /**
+     * Parses link into location set (new set is returned every time, so it may be modified)
+     * @param link Link in question
+     * @return Location set or null if link can not be resolved
+     */
+    public LocationSet parseLocations(String link) {
+        return LocationCalculator.parseSearchString(metadata, link);
+    }
+
+    /**
+     * Formats location set into canonical link (merged ranges, sorted books and chapters)
+     * @param set Location set
+     * @return Canonical link or null if set does not reference any verse
+     */
+    public String formatLocations(LocationSet set) {
+        return LocationCalculator.formatLocationSet(metadata, set);
+    }
+
+    /**
+     * Converts link into canonical form, so that links which reference the same verses are equal
+     * (e.g. "Мф. 5:1-3,4-12" and "Мф. 5:1-12")
+     * @param link Link in question
+     * @return Canonical link or null if link can not be resolved
+     */
+    public String canonicalizeLink(String link) {
+        return formatLocations(parseLocations(link));
+    }
+
+    /**
+     * Return book of the first location which is referenced by link (results are cached)
+     * @param link Link in question
+     * @return Book index (1-based) or -1 if link can not be resolved
+     */
+    public int getFirstBook(String link) {
+        Integer book = firstBooks.get(link);
+        if (book == null) {
+            LocationSet locationSet = parseLocations(link);
+            book = locationSet == null || locationSet.getLocations().isEmpty() ? -1 : locationSet.getLocations().get(0).getBook();
+            if (firstBooks.size() < CACHE_LIMIT) {
+                firstBooks.put(link, book);
+            }
+        }
+        return book;
+    }
+
+    /**
+     * Distributes readings between Old Testament, Apostle and Gospel lists of the calendar entry
+     * @param entry    Calendar entry
+     * @param readings List of readings
+     * @throws ParseException in case some link can not be resolved
+     */
+    public void addReadings(CalendarEntry entry, List<Line> readings) throws ParseException {
+        tryAddReadings(entry, readings).orThrow();
+    }
+
+    /**
+     * Distributes readings between Old Testament, Apostle and Gospel lists of the calendar entry
+     * (readings before the first unresolvable one are added)
+     * @param entry    Calendar entry
+     * @param readings List of readings
+     * @return Result with the same entry or failure (UNRESOLVABLE_LINK)
+     */
+    public ParseResult<CalendarEntry> tryAddReadings(CalendarEntry entry, List<Line> readings) {
+        for (Line line : readings) {
+            int book = getFirstBook(line.getLink());
+            if (book < 0) {
+                return ParseResult.failure(ParseResult.Error.UNRESOLVABLE_LINK, line.getLink(), -1);
+            }
+            if (book <= 50) { //Old Testament
+                entry.addReadingsOld(line);
+            } else if (book <= 54) {
+                entry.addReadingsGospel(line);
+            } else {
+                entry.addReadingsApostle(line);
+            }
+        }
+        return ParseResult.success(entry);
+    }
+
+    //==========================================================================
+    /**
+     * Rules which are applied (in this order) to every link before validation
+     */
+    private static final RewriteRule[] LINK_RULES = {
+        new RewriteRule("trailing ' 1'") {
+            @Override
+            protected String rewrite(String link) {
+                if (link.endsWith(" 1") && link.matches(".*?[^,] 1$")) {
+                    link = link.substring(0, link.length() - 2);
+                }
+                return link;
+            }
+        },
+        RewriteRule.literal("en dash", "–", "-"),
+        RewriteRule.literal("последи", "последи&#769;", ""),
+        RewriteRule.literal("stress mark", "\u0301", "&#769;"),
+        RewriteRule.regex("pericope interval", ", *?\\d+-\\d+ зач\\.( \\(от полу&#769;\\))? *?,", "", "зач."),
+        RewriteRule.regex("pericope", ", *?\\d+ зач\\.( \\(от полу&#769;\\))? *?,", "", "зач."),
+        RewriteRule.literal("asterisk", "*", ""),
+        RewriteRule.regex("leading book number", "^(\\d) ([А-Яа-я])", "$1$2", null),
+        RewriteRule.literal("', или'", ", или", ""),
+        RewriteRule.regex("ordinal suffix", "\\.? \\d{1,2}-е", "", "-е"),
+        RewriteRule.regex("Прп", "\\.? Прпп?\\.:", "", "Пр"), //TODO careful with this one
+        RewriteRule.regex("trailing dash", " -$", "", " -"),
+        RewriteRule.literal("Сол", "Сол.", "Фес."),
+        RewriteRule.literal("1_Фес", "1_Фес.", "1Фес."),
+        RewriteRule.literal("2_Фес", "2_Фес.", "2Фес."),
+        RewriteRule.literal("1_Ин", "1_Ин.", "1Ин."),
+        RewriteRule.literal("2_Ин", "2_Ин.", "2Ин."),
+        RewriteRule.literal("3_Ин", "3_Ин.", "3Ин."),
+        RewriteRule.literal("1_Пет", "1_Пет.", "1Пет."),
+        RewriteRule.literal("2_Пет", "2_Пет.", "2Пет."),
+        RewriteRule.literal("1_Кор", "1_Кор.", "1Кор."),
+        RewriteRule.literal("2_Кор", "2_Кор.", "2Кор."),
+        RewriteRule.literal("1_Тим", "1_Тим.", "1Тим."),
+        RewriteRule.literal("2_Тим", "2_Тим.", "2Тим."),
+        RewriteRule.literal("Притч", "Притч.", "Прит."),
+        RewriteRule.regex("Прем. Солом", "Прем\\.[ _]Солом\\.", "Прем.", "Солом."),
+        RewriteRule.regex("Недели", " \\(Недели \\d{1,2}-й\\)", "", "(Недели "),
+        new RewriteRule("trim") {
+            @Override
+            protected String rewrite(String link) {
+                return link.trim();
+            }
+        },
+        RewriteRule.regex("long numbers", "(\\d{2})\\d{2,3}", "$1", null),
+        RewriteRule.literal("о Закхее", " (о Закхее)", ""),
+        RewriteRule.literal("о хананеянке", " (о хананеянке)", ""),
+        RewriteRule.literal("semicolon", "; ", ", "),
+        RewriteRule.literal("dot comma", ".,", "."),
+        new RewriteRule("trailing punctuation") {
+            @Override
+            protected String rewrite(String link) {
+                if (link.endsWith(";") || link.endsWith(".") || link.endsWith(",")) {
+                    link = link.substring(0, link.length() - 1);
+                }
+                return link;
+            }
+        },
+        new RewriteRule("roman chapters") {
+            @Override
+            protected String rewrite(String link) {
+                Matcher romanMatcher = PATTERN_ROMAN.matcher(link);
+                while (romanMatcher.find()) {
+                    String numbers = link.substring(romanMatcher.end()).replaceAll("(\\d), (\\d)", "$1,$2");
+                    link = link.substring(0, romanMatcher.start()) + RomanNumbers.romanToDecimal(romanMatcher.group(1)) + ":" + numbers;
+                    romanMatcher = PATTERN_ROMAN.matcher(link);
+                }
+                return link;
+            }
+        },
+        new RewriteRule("complex groups 1") {
+            @Override
+            protected String rewrite(String link) {
+                Matcher cgm1 = PATTERN_COMPLEX_GROUPS1.matcher(link);
+                if (cgm1.matches()) {
+                    link = String.format("%s, %s:%s - %s", cgm1.group(1), cgm1.group(2), cgm1.group(3), cgm1.group(4));
+                }
+                return link;
+            }
+        },
+        new RewriteRule("complex groups 2") {
+            @Override
+            protected String rewrite(String link) {
+                Matcher cgm2 = PATTERN_COMPLEX_GROUPS2.matcher(link);
+                if (cgm2.matches()) {
+                    link = String.format("%s, %s:%s", cgm2.group(1), cgm2.group(2), cgm2.group(3));
+                }
+                return link;
+            }
+        }
+    };
+
+    /**
+     * Rules which restore book names from link addresses (applied only if address is found)
+     */
+    private static final RewriteRule[] MISSING_BOOK_RULES = {
+        RewriteRule.literal("mf", "mf", "Мф"),
+        RewriteRule.literal("mk", "mk", "Мк"),
+        RewriteRule.literal("lk", "lk", "Лк"),
+        RewriteRule.literal("jn", "jn", "Ин"),
+        RewriteRule.literal("act", "act", "Деян"),
+        RewriteRule.literal("jak", "jak", "Иак"),
+        RewriteRule.literal("pe1", "pe1", "1 Пет"),
+        RewriteRule.literal("pe2", "pe2", "2 Пет"),
+        RewriteRule.literal("jn1", "jn1", "1 Ин"),
+        RewriteRule.literal("jn2", "jn2", "2 Ин"),
+        RewriteRule.literal("jn3", "jn3", "3 Ин"),
+        RewriteRule.literal("jud", "jud", "Иуд"),
+        RewriteRule.literal("rom", "rom", "Рим"),
+        RewriteRule.literal("co1", "co1", "1 Кор"),
+        RewriteRule.literal("co2", "co2", "2 Кор"),
+        RewriteRule.literal("gal", "gal", "Гал"),
+        RewriteRule.literal("eph", "eph", "Еф"),
+        RewriteRule.literal("flp", "flp", "Флп"),
+        RewriteRule.literal("col", "col", "Кол"),
+        RewriteRule.literal("fe1", "fe1", "1 Фес"),
+        RewriteRule.literal("fe2", "fe2", "2 Фес"),
+        RewriteRule.literal("ti1", "ti1", "1 Тим"),
+        RewriteRule.literal("ti2", "ti2", "2 Тим"),
+        RewriteRule.literal("tit", "tit", "Тит"),
+        RewriteRule.literal("flm", "flm", "Флм"),
+        RewriteRule.literal("heb", "heb", "Евр"),
+        RewriteRule.literal("rev", "rev", "Откр")
+    };
+
+    private static final RewriteRule RULE_JN1 = RewriteRule.literal("Ин1", "Ин1.", "1 Ин.");
+
+    //==========================================================================
+    /**
+     * Normalizes link to the form which is used in calendar entries and validates it
+     * @param link Link in question
+     * @return Normalized link
+     * @throws ParseException in case link is not valid
+     */
+    public String beautifyLink(String link) throws ParseException {
+        return tryBeautifyLink(link).orThrow();
+    }
+
+    /**
+     * Normalizes link to the form which is used in calendar entries and validates it
+     * @param link Link in question
+     * @return Result with normalized link or failure (INVALID_READINGS) with position of the first invalid character
+     */
+    public ParseResult<String> tryBeautifyLink(String link) {
+        if (link.length() > MATCH_LENGTH_LIMIT) { //Rules are not guarded
+            return ParseResult.failure(ParseResult.Error.INPUT_TOO_LONG, link, MATCH_LENGTH_LIMIT);
+        }
+        for (RewriteRule rule : LINK_RULES) {
+            link = rule.apply(link);
+        }
+        final String lower = link.toLowerCase();
+        try {
+            if (!guarded(validatorReadings, lower + ";").matches()) {
+                return ParseResult.failure(ParseResult.Error.INVALID_READINGS, link, new ParseResult.Locator() {
+                    @Override
+                    public int locate() {
+                        return findInvalidPosition(lower);
+                    }
+                });
+            }
+        } catch (LimitExceededException ex) {
+            return limitFailure(ex);
+        }
+        return ParseResult.success(link);
+    }
+
+    /**
+     * Finds length of the longest prefix of link which may still be continued into valid one
+     * (only called when position of invalid link is requested, takes logarithmic number of matches)
+     * @param link Lower-case link
+     * @return Position of the first character which makes link invalid (-1 if matching is too complex)
+     */
+    private int findInvalidPosition(String link) {
+        int low = 0; //Viable prefix length
+        int high = link.length() + 1;
+        try {
+            while (high - low > 1) {
+                int middle = (low + high) >>> 1;
+                Matcher matcher = guarded(validatorReadings, link.substring(0, middle));
+                if (matcher.matches() || matcher.hitEnd()) {
+                    low = middle;
+                } else {
+                    high = middle;
+                }
+            }
+        } catch (LimitExceededException ex) {
+            return -1;
+        }
+        return Math.min(low, link.length());
+    }
+
+    /**
+     * Creates matcher which fails fast with LimitExceededException on too long or pathological input
+     * @param pattern Pattern to use
+     * @param input   Text to match
+     * @return Created matcher
+     */
+    private static Matcher guarded(Pattern pattern, CharSequence input) {
+        return pattern.matcher(GuardedCharSequence.wrap(input, MATCH_LENGTH_LIMIT, MATCH_STEP_BUDGET));
+    }
+
+    private static <T> ParseResult<T> limitFailure(LimitExceededException ex) {
+        ParseResult.Error error = ex.isLengthExceeded() ? ParseResult.Error.INPUT_TOO_LONG : ParseResult.Error.INPUT_TOO_COMPLEX;
+        return ParseResult.failure(error, ex.getInput(), -1);
+    }
+
+    //==========================================================================
+
+    private static String restoreMissingBookNames(String data) {
+        Matcher missingMatcher = guarded(PATTERN_MISSING_BOOK, data);
+        if (missingMatcher.matches()) {
+            data = String.format("%s.%s", missingMatcher.group(1), missingMatcher.group(2));
+            for (RewriteRule rule : MISSING_BOOK_RULES) {
+                data = rule.apply(data);
+            }
+        }
+        data = RULE_JN1.apply(data);
+        return data;
+    }
+
+    private ParseResult<Line> splitLineAndComment(String data) {
+        Matcher leftMatcher = guarded(PATTERN_COMMENT_LEFT, data);
+        if (!leftMatcher.matches()) {
+            data = restoreMissingBookNames(data);
+            leftMatcher = guarded(PATTERN_COMMENT_LEFT, data);
+        }
+        if (leftMatcher.matches()) {
+            ParseResult<String> link = tryBeautifyLink(leftMatcher.group(2));
+            if (!link.isSuccess()) {
+                return link.propagate();
+            }
+            String comment = leftMatcher.group(1).trim();
+            Matcher romanMatcher = PATTERN_ROMAN.matcher(comment);
+            if (romanMatcher.find()) {
+                return ParseResult.failure(ParseResult.Error.ILLEGAL_COMMENT, comment, romanMatcher.start());
+            }
+            return ParseResult.success(new Line(link.getValue(), comment));
+        } else {
+            return ParseResult.failure(ParseResult.Error.CANNOT_SPLIT_LINE, data, -1);
+        }
+    }
+
+    //==========================================================================
+    private ParseResult<List<Line>> extractLinesFromComment(String data) {
+        if (data.endsWith(";")) {
+            data = data.substring(0, data.length() - 1) + ".";
+        }
+        data = data.replaceAll(" ?Ев\\. составное:? ?", "");
+        List<Line> lines = new ArrayList<>();
+        Matcher separator = PATTERN_COMMENT_SEPARATOR.matcher(data);
+        if (separator.find()) {
+            //--- Process left part ---
+            String left = data.substring(0, separator.end());
+            ParseResult<Line> leftLine = splitLineAndComment(left);
+            if (!leftLine.isSuccess()) {
+                return leftLine.propagate();
+            }
+            lines.add(leftLine.getValue());
+            //--- Process right part ---
+            String right;
+            if (separator.end() >= data.length()) {
+                right = lines.get(lines.size() - 1).getComment();
+            } else {
+                right = data.substring(separator.end() + 1).trim();
+            }
+            if (PATTERN_ROMAN.matcher(right).find()) { //2 links present
+                ParseResult<Line> rightLine = splitLineAndComment(right);
+                if (!rightLine.isSuccess()) {
+                    return rightLine.propagate();
+                }
+                Line line = rightLine.getValue();
+                lines.add(line);
+                lines.add(new Line(null, line.getComment()));
+            } else { //Only 1 link
+                if (right.endsWith(":") || right.endsWith("-") || right.endsWith("–")) {
+                    right = right.substring(0, right.length() - 1).trim();
+                }
+                lines.add(new Line(null, right));
+            }
+        } else {
+            return ParseResult.failure(ParseResult.Error.ILLEGAL_COMMENT, data, -1);
+        }
+        return ParseResult.success(lines);
+    }
+
+    //==========================================================================
+
+    /**
+     * One part of readings block (parts are separated with non-breaking spaces)
+     */
+    private static class ReadingsPart {
+
+        /**
+         * Flat text of the part (links are kept as markup)
+         */
+        private final Segment text;
+        /**
+         * Text which precedes the only link of the part (null if part must be matched by patterns)
+         */
+        private final String comment;
+        /**
+         * Text of the only link of the part (null if part must be matched by patterns)
+         */
+        private final String link;
+
+        ReadingsPart(Segment text, String comment, String link) {
+            this.text = text;
+            this.comment = comment;
+            this.link = link;
+        }
+    }
+
+    /**
+     * Readings block split into parts (with counters needed for validation)
+     */
+    private static class ReadingsBlock implements ReadingsExtractor.Handler {
+
+        private final List<ReadingsPart> parts = new ArrayList<>();
+        private int numberOfPericopes = 0;
+
+        private final StringBuilder text = new StringBuilder();
+        private final StringBuilder prefix = new StringBuilder();
+        private String link = null;
+        private int links = 0;
+        private boolean simple = true;
+
+        @Override
+        public void onText(String fragment) {
+            text.append(fragment);
+            if (links == 0) {
+                prefix.append(fragment);
+            } else if (!fragment.trim().isEmpty()) {
+                simple = false;
+            }
+        }
+
+        @Override
+        public void onLink(String href, String fragment, boolean simpleLink) {
+            text.append("<a href=\"").append(href).append("\">").append(fragment).append("</a>");
+            link = fragment;
+            links++;
+            simple &= simpleLink;
+        }
+
+        @Override
+        public void onSeparator() {
+            Segment flat = ReadingsSegmenter.scan(text.toString());
+            numberOfPericopes += flat.getPericopes();
+            if (links == 1 && simple) { //Same split as PATTERN_READING does
+                String comment = prefix.toString();
+                int end = comment.length();
+                while (end > 0 && comment.charAt(end - 1) == ' ') {
+                    end--;
+                }
+                if (end > 0 && ",:-".indexOf(comment.charAt(end - 1)) >= 0) {
+                    end--;
+                }
+                String linkText = link;
+                if (linkText.endsWith(".") || linkText.endsWith(",")) {
+                    linkText = linkText.substring(0, linkText.length() - 1);
+                }
+                parts.add(new ReadingsPart(flat, comment.substring(0, end).trim(), linkText.trim()));
+            } else {
+                parts.add(new ReadingsPart(flat, null, null));
+            }
+            text.setLength(0);
+            prefix.setLength(0);
+            link = null;
+            links = 0;
+            simple = true;
+        }
+
+        /**
+         * Closes the last part and drops empty parts at the end of the block
+         */
+        void finish() {
+            onSeparator();
+            while (!parts.isEmpty() && parts.get(parts.size() - 1).text.isEmpty()) {
+                parts.remove(parts.size() - 1);
+            }
+        }
+    }
+
+    /**
+     * Splits readings block using regular expressions (used if document is not well-formed XML)
+     * @param readingsData Readings document
+     * @return Readings block or null if block is not found
+     */
+    private static ReadingsBlock extractReadingsLegacy(String readingsData) {
+        readingsData = readingsData.replace('–', '-');
+        Matcher readingsMatcher = PATTERN_READINGS.matcher(readingsData);
+        if (!readingsMatcher.find()) {
+            return null;
+        }
+        String readings = readingsMatcher.group(1);
+        ReadingsBlock block = new ReadingsBlock();
+        for (Segment segment : ReadingsSegmenter.split(readings, "&nbsp;")) {
+            block.numberOfPericopes += segment.getPericopes();
+            block.parts.add(new ReadingsPart(segment, null, null));
+        }
+        return block;
+    }
+
+    /**
+     * Extracts readings block from readings document
+     * @param readingsData Readings document (kld.xml)
+     * @return Readings block or null if block is not found
+     */
+    private static ReadingsBlock extractReadings(String readingsData) {
+        ReadingsBlock block = new ReadingsBlock();
+        try {
+            if (!ReadingsExtractor.extract(new StringReader(readingsData), block)) {
+                return null;
+            }
+        } catch (XmlPullParserException | IOException | IndexOutOfBoundsException ex) { //XPP3 fails with the latter on some malformed names
+            System.err.println("Readings document is not well-formed, falling back to patterns: " + ex.getMessage());
+            return extractReadingsLegacy(readingsData);
+        }
+        block.finish();
+        return block.parts.isEmpty() ? null : block;
+    }
+
+    /**
+     * Parses readings document (kld.xml) into list of readings
+     * @param readingsData Readings document
+     * @return List of readings (links are normalized and validated)
+     * @throws ParseException in case document can not be parsed
+     */
+    public List<Line> parseReadings(String readingsData) throws ParseException {
+        return tryParseReadings(readingsData).orThrow();
+    }
+
+    /**
+     * Parses readings document (kld.xml) into list of readings
+     * @param readingsData Readings document
+     * @return Result with list of readings (links are normalized and validated) or failure
+     */
+    public ParseResult<List<Line>> tryParseReadings(String readingsData) {
+        try {
+            return parseReadingsBlock(readingsData);
+        } catch (LimitExceededException ex) { //Line is too long or pattern backtracks too much
+            return limitFailure(ex);
+        }
+    }
+
+    private ParseResult<List<Line>> parseReadingsBlock(String readingsData) {
+        List<Line> result = new ArrayList<>();
+
+        //--- Parse readings ---
+        ReadingsBlock block = extractReadings(readingsData);
+        if (block == null) {
+            return ParseResult.failure(ParseResult.Error.NO_READINGS_DATA, readingsData, -1);
+        }
+        int numberOfNbspsCalc = block.parts.size();
+        int numberOfPericopes = block.numberOfPericopes;
+        String lastComment = "";
+        int numberOfNbspsEmp = 0;
+        for (ReadingsPart part : block.parts) {
+            Segment nbspPart = part.text;
+
+            if (!nbspPart.hasRoman()) {
+                System.err.println("Skipped NBSP part: " + nbspPart);
+                numberOfNbspsCalc--;
+                continue;
+            }
+
+            if (guarded(PATTERN_DOUBLE_LINE, nbspPart).matches()) { //2 lines in one nbsp part
+                Matcher separator = PATTERN_COMMENT_SEPARATOR.matcher(nbspPart);
+                if (separator.find()) {
+                    String left = nbspPart.subSequence(0, separator.end()).toString();
+                    int rightStart = Math.min(separator.end() + 1, nbspPart.length()); //Separator may end the part
+                    String right = nbspPart.subSequence(rightStart, nbspPart.length()).toString().trim();
+                    ParseResult<Line> leftLine = splitLineAndComment(left);
+                    if (!leftLine.isSuccess()) {
+                        return leftLine.propagate();
+                    }
+                    ParseResult<Line> rightLine = splitLineAndComment(right);
+                    if (!rightLine.isSuccess()) {
+                        return rightLine.propagate();
+                    }
+                    result.add(leftLine.getValue());
+                    result.add(rightLine.getValue());
+                    numberOfNbspsEmp++;
+                    continue;
+                }
+            }
+
+            String link = part.link;
+            String comment = part.comment;
+            if (link == null) {
+                Matcher readingMatcher = guarded(PATTERN_READING, nbspPart);
+                if (readingMatcher.matches()) {
+                    link = readingMatcher.group(2).trim();
+                    comment = readingMatcher.group(1).trim();
+                }
+            }
+            if (link != null) {
+
+                ParseResult<String> beautified = tryBeautifyLink(link);
+                if (!beautified.isSuccess()) {
+                    return beautified.propagate();
+                }
+                link = beautified.getValue();
+
+                if (comment.endsWith(", или")) {
+                    ParseResult<Line> line = splitLineAndComment(comment.substring(0, comment.length() - ", или".length()));
+                    if (!line.isSuccess()) {
+                        return line.propagate();
+                    }
+                    result.add(line.getValue());
+                    comment = "или";
+                }
+
+                Matcher substituteMatcher = comment.contains(" - за ") ? guarded(PATTERN_SUBSTITUTE, comment) : null;
+                if (substituteMatcher != null && substituteMatcher.matches()) {
+                    ParseResult<String> subLink = tryBeautifyLink(substituteMatcher.group(1));
+                    if (!subLink.isSuccess()) {
+                        return subLink.propagate();
+                    }
+                    result.add(new Line(subLink.getValue(), lastComment));
+                    comment = substituteMatcher.group(2).trim();
+                }
+
+                if (PATTERN_ROMAN.matcher(comment).find()) {
+                    ParseResult<List<Line>> extracted = extractLinesFromComment(comment);
+                    if (!extracted.isSuccess()) {
+                        return extracted.propagate();
+                    }
+                    List<Line> lines = extracted.getValue();
+                    lines.get(lines.size() - 1).setLink(link);
+                    lastComment = lines.get(lines.size() - 1).getComment();
+                    result.addAll(lines);
+                } else {
+                    if (comment.isEmpty()) {
+                        comment = lastComment;
+                    } else {
+                        lastComment = comment;
+                    }
+                    result.add(new Line(link, comment));
+                }
+                numberOfNbspsEmp++;
+            } else if (nbspPart.hasRoman()) {
+                ParseResult<Line> split = splitLineAndComment(nbspPart.toString());
+                if (!split.isSuccess()) {
+                    return split.propagate();
+                }
+                Line line = split.getValue();
+                if (line.getComment().isEmpty()) {
+                    line.setComment(lastComment);
+                } else {
+                    lastComment = line.getComment();
+                }
+                result.add(line);
+                numberOfNbspsEmp++;
+            } else {
+                return ParseResult.failure(ParseResult.Error.NBSP_PART_MISMATCH, nbspPart.toString(), -1);
+            }
+        }
+        if (numberOfNbspsCalc != numberOfNbspsEmp) {
+            return ParseResult.failure(ParseResult.Error.NBSP_COUNT_MISMATCH, readingsData, -1);
+        }
+        if (result.size() != numberOfPericopes) {
+            for (Line line : result) {
+                int book = getFirstBook(line.getLink());
+                if (book > 0 && book <= 50) { //Old Testament
+                    numberOfPericopes++;
+                }
+            }
+            if (result.size() != numberOfPericopes) {
+                return ParseResult.failure(ParseResult.Error.PERICOPE_COUNT_MISMATCH, readingsData, -1);
+            }
+        }
+        if (result.isEmpty()) {
+            return ParseResult.failure(ParseResult.Error.ZERO_READINGS, null, -1);
+        }
+
+        return ParseResult.success(result);
+    }
+
+}
@@ -0,0 +1,434 @@
+package org.alexsem.buparser;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.alexsem.buparser.CalendarEntry.Line;
+import org.alexsem.buparser.model.Location;
+import org.alexsem.buparser.model.LocationSet;
+import org.alexsem.buparser.util.Json;
+import org.alexsem.buparser.util.ParseResult;
+
+/**
+ * Class which runs resident HTTP service (JSON in, JSON out), so tools do not have to start new JVM for every call.
+ * <pre>
+ * GET  /beautify?link=...           POST /beautify  {"links": ["...", ...]}
+ * GET  /locations?link=...          POST /locations {"links": ["...", ...]}
+ * GET  /calendar?date=yyyy-MM-dd    GET  /calendar?from=yyyy-MM-dd&amp;to=yyyy-MM-dd
+ * POST /calendar {"dates": ["yyyy-MM-dd", ...]}
+ * GET  /health
+ * </pre>
+ * Every endpoint answers with {"results": [...]} (one element per requested item, in request order).
+ * Requests are handled by virtual threads when they are available (Java 21+), by cached thread pool otherwise
+ * @author Semeniuk A.D.
+ */
+public class ParserService {
+
+    private static final int DEFAULT_PORT = 8377;
+    private static final int MAX_BODY_SIZE = 1024 * 1024;
+    private static final int MAX_BATCH_SIZE = 10000;
+    private static final int MAX_RANGE_DAYS = 366;
+
+    private final ParserEngine engine;
+    private final CalendarStore store;
+    private HttpServer server;
+    private ExecutorService executor;
+
+    /**
+     * Creates service
+     * @param engine Engine to use for parsing
+     * @param store  Calendar store for calendar lookups (may be null)
+     */
+    public ParserService(ParserEngine engine, CalendarStore store) {
+        this.engine = engine;
+        this.store = store;
+    }
+
+    /**
+     * Starts service
+     * @param address Address to bind to
+     * @throws IOException in case server can not be started
+     */
+    public synchronized void start(InetSocketAddress address) throws IOException {
+        if (server != null) {
+            throw new IllegalStateException("Service is already started");
+        }
+        server = HttpServer.create(address, 0);
+        executor = createExecutor();
+        server.setExecutor(executor);
+        server.createContext("/beautify", new JsonHandler() {
+            @Override
+            Object process(Map<String, Object> request) {
+                return beautify(getStrings(request, "link", "links"));
+            }
+        });
+        server.createContext("/locations", new JsonHandler() {
+            @Override
+            Object process(Map<String, Object> request) {
+                return locations(getStrings(request, "link", "links"));
+            }
+        });
+        server.createContext("/calendar", new JsonHandler() {
+            @Override
+            Object process(Map<String, Object> request) throws IOException {
+                return calendar(request);
+            }
+        });
+        server.createContext("/health", new JsonHandler() {
+            @Override
+            Object process(Map<String, Object> request) {
+                return "{\"status\":\"ok\"}";
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * Stops service
+     */
+    public synchronized void stop() {
+        if (server != null) {
+            server.stop(0);
+            executor.shutdown();
+            server = null;
+            executor = null;
+        }
+    }
+
+    /**
+     * Return address service is listening on
+     * @return Address or null if service is not started
+     */
+    public synchronized InetSocketAddress getAddress() {
+        return server == null ? null : server.getAddress();
+    }
+
+    /**
+     * Creates virtual-thread-per-task executor if it is supported by the running JVM
+     * @return Executor
+     */
+    private static ExecutorService createExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    //==========================================================================
+    private String beautify(List<String> links) {
+        StringBuilder builder = new StringBuilder("{\"results\":[");
+        for (int i = 0; i < links.size(); i++) {
+            String link = links.get(i);
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append("{\"input\":");
+            Json.quote(builder, link);
+            ParseResult<String> result = engine.tryBeautifyLink(link);
+            if (result.isSuccess()) {
+                builder.append(",\"result\":");
+                Json.quote(builder, result.getValue());
+            } else {
+                builder.append(",\"error\":");
+                Json.quote(builder, result.getMessage());
+            }
+            builder.append('}');
+        }
+        return builder.append("]}").toString();
+    }
+
+    private String locations(List<String> links) {
+        StringBuilder builder = new StringBuilder("{\"results\":[");
+        for (int i = 0; i < links.size(); i++) {
+            String link = links.get(i);
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append("{\"input\":");
+            Json.quote(builder, link);
+            try {
+                LocationSet set = engine.parseLocations(link);
+                if (set == null) {
+                    builder.append(",\"error\":\"Nothing found\"");
+                } else {
+                    builder.append(",\"locations\":[");
+                    List<Location> list = set.getLocations();
+                    for (int j = 0; j < list.size(); j++) {
+                        Location location = list.get(j);
+                        if (j > 0) {
+                            builder.append(',');
+                        }
+                        builder.append("{\"book\":").append(location.getBook());
+                        builder.append(",\"shortName\":");
+                        Json.quote(builder, engine.getMetadata().getBookShortName(location.getBook()));
+                        builder.append(",\"chapter\":").append(location.getChapter());
+                        builder.append(",\"verses\":");
+                        if (location.getFilter() == null) {
+                            builder.append("null");
+                        } else {
+                            List<Integer> verses = new ArrayList<>(location.getFilter());
+                            Collections.sort(verses);
+                            builder.append(verses.toString().replace(" ", ""));
+                        }
+                        builder.append('}');
+                    }
+                    builder.append(']');
+                }
+            } catch (Exception ex) {
+                appendError(builder, ex);
+            }
+            builder.append('}');
+        }
+        return builder.append("]}").toString();
+    }
+
+    private String calendar(Map<String, Object> request) throws IOException {
+        if (store == null) {
+            throw new IllegalArgumentException("No calendars are opened");
+        }
+        List<LocalDate> dates = new ArrayList<>();
+        try {
+            if (request.containsKey("from") || request.containsKey("to")) {
+                LocalDate from = LocalDate.parse(String.valueOf(request.get("from")));
+                LocalDate to = LocalDate.parse(String.valueOf(request.get("to")));
+                if (to.isBefore(from) || to.toEpochDay() - from.toEpochDay() >= MAX_RANGE_DAYS) {
+                    throw new IllegalArgumentException("Range must be ascending and not longer than " + MAX_RANGE_DAYS + " days");
+                }
+                for (LocalDate day = from; !day.isAfter(to); day = day.plusDays(1)) {
+                    dates.add(day);
+                }
+            } else {
+                for (String date : getStrings(request, "date", "dates")) {
+                    dates.add(LocalDate.parse(date));
+                }
+            }
+        } catch (DateTimeParseException ex) {
+            throw new IllegalArgumentException("Invalid date: " + ex.getParsedString());
+        }
+        StringBuilder builder = new StringBuilder("{\"results\":[");
+        for (int i = 0; i < dates.size(); i++) {
+            LocalDate day = dates.get(i);
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append("{\"date\":\"").append(day).append('"');
+            CalendarEntry entry = store.get(day);
+            if (entry == null) {
+                builder.append(",\"error\":\"Not found\"");
+            } else {
+                builder.append(",\"holiday\":").append(entry.isHoliday());
+                builder.append(",\"title\":");
+                Json.quote(builder, entry.getTitle());
+                builder.append(",\"feast\":");
+                Json.quote(builder, entry.getFeast());
+                appendLines(builder, "old", entry.getReadingsOld());
+                appendLines(builder, "apostle", entry.getReadingsApostle());
+                appendLines(builder, "gospel", entry.getReadingsGospel());
+            }
+            builder.append('}');
+        }
+        return builder.append("]}").toString();
+    }
+
+    private static void appendLines(StringBuilder builder, String name, List<Line> lines) {
+        builder.append(",\"").append(name).append("\":[");
+        for (int i = 0; i < lines.size(); i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append("{\"link\":");
+            Json.quote(builder, lines.get(i).getLink());
+            builder.append(",\"comment\":");
+            Json.quote(builder, lines.get(i).getComment());
+            builder.append('}');
+        }
+        builder.append(']');
+    }
+
+    private static void appendError(StringBuilder builder, Exception ex) {
+        builder.append(",\"error\":");
+        Json.quote(builder, ex.getMessage() != null ? ex.getMessage() : ex.toString());
+    }
+
+    /**
+     * Return list of strings which is passed either as single value or as array
+     * @param request Request parameters
+     * @param single  Name of single value parameter
+     * @param multi   Name of array parameter
+     * @return List of strings
+     */
+    private static List<String> getStrings(Map<String, Object> request, String single, String multi) {
+        List<String> result = new ArrayList<>();
+        Object value = request.get(multi);
+        if (value instanceof List) {
+            for (Object item : (List<?>) value) {
+                if (!(item instanceof String)) {
+                    throw new IllegalArgumentException("'" + multi + "' must contain strings only");
+                }
+                result.add((String) item);
+            }
+        } else if (value != null) {
+            throw new IllegalArgumentException("'" + multi + "' must be an array");
+        }
+        value = request.get(single);
+        if (value instanceof String) {
+            result.add((String) value);
+        } else if (value != null) {
+            throw new IllegalArgumentException("'" + single + "' must be a string");
+        }
+        if (result.isEmpty()) {
+            throw new IllegalArgumentException("Either '" + single + "' or '" + multi + "' must be specified");
+        }
+        if (result.size() > MAX_BATCH_SIZE) {
+            throw new IllegalArgumentException("Batch is too large (maximum is " + MAX_BATCH_SIZE + ")");
+        }
+        return result;
+    }
+
+    //==========================================================================
+    /**
+     * Handler which collects parameters (query string for GET, JSON object for POST) and writes JSON response
+     */
+    private static abstract class JsonHandler implements HttpHandler {
+
+        abstract Object process(Map<String, Object> request) throws IOException;
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            int status = 200;
+            String response;
+            try {
+                Map<String, Object> request;
+                if (exchange.getRequestMethod().equals("GET")) {
+                    request = parseQuery(exchange.getRequestURI().getRawQuery());
+                } else if (exchange.getRequestMethod().equals("POST")) {
+                    request = parseBody(exchange.getRequestBody());
+                } else {
+                    exchange.getResponseHeaders().add("Allow", "GET, POST");
+                    throw new ServiceException(405, "Method is not allowed");
+                }
+                response = String.valueOf(process(request));
+            } catch (ServiceException ex) {
+                status = ex.status;
+                response = errorResponse(ex.getMessage());
+            } catch (IllegalArgumentException ex) {
+                status = 400;
+                response = errorResponse(ex.getMessage());
+            } catch (Throwable ex) { //Errors too, otherwise client gets no response at all
+                status = 500;
+                response = errorResponse(ex.toString());
+            }
+            byte[] data = response.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
+            exchange.sendResponseHeaders(status, data.length);
+            try (OutputStream output = exchange.getResponseBody()) {
+                output.write(data);
+            }
+        }
+
+        private static String errorResponse(String message) {
+            return Json.quote(new StringBuilder("{\"error\":"), message).append('}').toString();
+        }
+
+        private static Map<String, Object> parseQuery(String query) {
+            Map<String, Object> result = new HashMap<>();
+            if (query == null || query.isEmpty()) {
+                return result;
+            }
+            for (String pair : query.split("&")) {
+                int index = pair.indexOf('=');
+                String name = URLDecoder.decode(index < 0 ? pair : pair.substring(0, index), StandardCharsets.UTF_8);
+                String value = index < 0 ? "" : URLDecoder.decode(pair.substring(index + 1), StandardCharsets.UTF_8);
+                result.put(name, value);
+            }
+            return result;
+        }
+
+        @SuppressWarnings("unchecked")
+        private static Map<String, Object> parseBody(InputStream input) throws IOException {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = input.read(buffer)) >= 0) {
+                body.write(buffer, 0, count);
+                if (body.size() > MAX_BODY_SIZE) {
+                    throw new ServiceException(413, "Request is too large");
+                }
+            }
+            Object json = Json.parse(new String(body.toByteArray(), StandardCharsets.UTF_8));
+            if (!(json instanceof Map)) {
+                throw new IllegalArgumentException("Request must be a JSON object");
+            }
+            return (Map<String, Object>) json;
+        }
+    }
+
+    private static class ServiceException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int status;
+
+        ServiceException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    //==========================================================================
+    /**
+     * Usage: ParserService [-port 8377] [-host 127.0.0.1] [-archive file.buca]... [-directory dir year]...
+     * @param args Command line arguments
+     * @throws Exception in case service can not be started
+     */
+    public static void main(String[] args) throws Exception {
+        int port = DEFAULT_PORT;
+        InetAddress host = InetAddress.getLoopbackAddress();
+        CalendarStore store = new CalendarStore();
+        boolean calendars = false;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-port":
+                    port = Integer.parseInt(args[++i]);
+                    break;
+                case "-host":
+                    host = InetAddress.getByName(args[++i]);
+                    break;
+                case "-archive":
+                    store.openArchive(new File(args[++i]));
+                    calendars = true;
+                    break;
+                case "-directory":
+                    File directory = new File(args[++i]);
+                    store.openDirectory(directory, Integer.parseInt(args[++i]));
+                    calendars = true;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown argument: " + args[i]);
+            }
+        }
+        ParserService service = new ParserService(ParserEngine.getDefault(), calendars ? store : null);
+        service.start(new InetSocketAddress(host, port));
+        System.out.println("Listening on " + service.getAddress());
+    }
+
+}
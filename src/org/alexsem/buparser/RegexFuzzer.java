@@ -0,0 +1,177 @@
+package org.alexsem.buparser;
+
+import java.util.Random;
+import org.alexsem.buparser.util.ParseResult;
+
+/**
+ * Class which feeds generated input to the parser and reports inputs which take too long to match.
+ * Inputs are built from fragments of real readings (book names, Roman numerals, punctuation, links etc.);
+ * some of them repeat short motifs, which is what makes backtracking patterns slow.
+ * Every input is parsed both as link and as readings document.
+ * <pre>
+ * Usage: RegexFuzzer [-count 100000] [-seed 1] [-length 60] [-threshold 10]
+ * </pre>
+ * Slow inputs and inputs which make parser throw are written to stdout (time, kind, result and input), followed by summary.
+ * Parser diagnostics go to stderr
+ * Input is reported only if it is slow twice in a row, so that JIT and GC pauses are not reported
+ * @author Semeniuk A.D.
+ */
+public class RegexFuzzer {
+
+    private static final String[] FRAGMENTS = {
+        "Мф.", "Ин., ", "1 Кор., ", "Деян.", "Аа", "зач., ", "63 ", "XX, ", "I, ", "IV", "1", "17", "5",
+        "&ndash;", "-", " - ", "–", ".,", ".", ",", ", ", ":", ": ", " ", "  ", "_", "(", ")",
+        "Утр.: ", "Лит.: ", "или", ", или", "за понедельник", " и за вторник", " (под зачало)", " (Недели 12-й)",
+        "<a href=\"/bible/jn/20/1/\">", "<a href=\"/bible/1cor/1/10/\">", "</a>", "<a", ">", "<div>", "</div>", "&nbsp;"
+    };
+    private static final double MOTIF_PROBABILITY = 0.3;
+
+    private final Random random;
+    private final int maxLength;
+
+    private RegexFuzzer(long seed, int maxLength) {
+        this.random = new Random(seed);
+        this.maxLength = maxLength;
+    }
+
+    //==========================================================================
+    /**
+     * Generates next input (either random sequence of fragments or repeated motif)
+     * @return Generated input
+     */
+    private String next() {
+        int count = 1 + random.nextInt(maxLength);
+        StringBuilder builder = new StringBuilder();
+        if (random.nextDouble() < MOTIF_PROBABILITY) {
+            String[] motif = new String[1 + random.nextInt(3)];
+            for (int i = 0; i < motif.length; i++) {
+                motif[i] = fragment();
+            }
+            for (int i = 0; i < count; i++) {
+                builder.append(motif[i % motif.length]);
+            }
+            if (random.nextBoolean()) {
+                builder.append(fragment()); //Breaks the motif, so that match fails at the very end
+            }
+        } else {
+            for (int i = 0; i < count; i++) {
+                builder.append(fragment());
+            }
+        }
+        return builder.toString();
+    }
+
+    private String fragment() {
+        if (random.nextInt(16) == 0) {
+            return String.valueOf((char) (' ' + random.nextInt(0x460 - ' '))); //ASCII and Cyrillic
+        }
+        return FRAGMENTS[random.nextInt(FRAGMENTS.length)];
+    }
+
+    /**
+     * Wraps input into readings document (same layout as kld.xml)
+     * @param input Readings text
+     * @return Readings document
+     */
+    private static String document(String input) {
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?><kld><div class=\"read\">" + input + "</div> <div class=\"other\"></div></kld>";
+    }
+
+    //==========================================================================
+    /**
+     * Measures parsing of input as link or as readings document
+     * @param engine Parser engine
+     * @param input  Input in question
+     * @param link   true to parse input as link, false to parse it as readings
+     * @return Result with elapsed time in nanoseconds
+     */
+    private static Measurement measure(ParserEngine engine, String input, boolean link) {
+        long start = System.nanoTime();
+        ParseResult<?> result;
+        try {
+            result = link ? engine.tryBeautifyLink(input) : engine.tryParseReadings(document(input));
+        } catch (RuntimeException | StackOverflowError ex) { //Parser must not throw, reported regardless of time
+            return new Measurement(System.nanoTime() - start, ex.toString(), true);
+        }
+        long elapsed = System.nanoTime() - start;
+        return new Measurement(elapsed, result.isSuccess() ? "success" : result.getError().name(), false);
+    }
+
+    private static class Measurement {
+
+        private final long nanos;
+        private final String outcome;
+        private final boolean thrown;
+
+        Measurement(long nanos, String outcome, boolean thrown) {
+            this.nanos = nanos;
+            this.outcome = outcome;
+            this.thrown = thrown;
+        }
+    }
+
+    //==========================================================================
+    public static void main(String[] args) throws Exception {
+        int count = 100000;
+        long seed = 1;
+        int length = 60;
+        long threshold = 10;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-count":
+                    count = Integer.parseInt(args[++i]);
+                    break;
+                case "-seed":
+                    seed = Long.parseLong(args[++i]);
+                    break;
+                case "-length":
+                    length = Integer.parseInt(args[++i]);
+                    break;
+                case "-threshold":
+                    threshold = Long.parseLong(args[++i]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown argument: " + args[i]);
+            }
+        }
+        long thresholdNanos = threshold * 1000000L;
+
+        ParserEngine engine = ParserEngine.getDefault();
+        RegexFuzzer fuzzer = new RegexFuzzer(seed, length);
+        int slow = 0;
+        int thrown = 0;
+        long slowest = 0;
+        String slowestInput = null;
+        long started = System.currentTimeMillis();
+        for (int i = 0; i < count; i++) {
+            String input = fuzzer.next();
+            for (int kind = 0; kind < 2; kind++) {
+                boolean link = kind == 0;
+                Measurement measurement = measure(engine, input, link);
+                if (measurement.nanos > thresholdNanos) {
+                    measurement = measure(engine, input, link); //Confirm
+                }
+                if (measurement.nanos > slowest) {
+                    slowest = measurement.nanos;
+                    slowestInput = input;
+                }
+                if (measurement.thrown) {
+                    thrown++;
+                } else if (measurement.nanos > thresholdNanos) {
+                    slow++;
+                }
+                if (measurement.thrown || measurement.nanos > thresholdNanos) {
+                    System.out.println(String.format("%d ms\t%s\t%s\t%s", measurement.nanos / 1000000, link ? "link" : "readings",
+                            measurement.outcome, input));
+                }
+            }
+        }
+        System.out.println(String.format("Inputs: %d, slow: %d, thrown: %d, slowest: %.3f ms, time: %d ms", count, slow, thrown,
+                slowest / 1000000.0, System.currentTimeMillis() - started));
+        if (slowestInput != null) {
+            System.out.println("Slowest input: " + slowestInput);
+        }
+        System.exit(slow + thrown > 0 ? 1 : 0);
+    }
+
+}
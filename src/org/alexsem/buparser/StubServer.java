@@ -0,0 +1,215 @@
+package org.alexsem.buparser;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Class which serves calendar pages from local HTTP server instead of the live site.
+ * Recorded pages (recordings/kld/yyyy-MM-dd.xml, recordings/title/yyyy-MM-dd.html) are served
+ * or synthetic ones if recording is missing, with configurable latency, jitter and error rate (503).
+ * Throttling may be simulated as well: request is answered with 429 (and Retry-After header,
+ * if configured) at once when more than the specific number of requests are in flight
+ * @author Semeniuk A.D.
+ */
+class StubServer {
+
+    private static final Pattern PATTERN_DATE = Pattern.compile("(\\d{4}-\\d{2}-\\d{2})");
+
+    private static final String[] SYNTHETIC_READINGS = {
+        "Утр.: <a href=\"/bible/jn/20/1/\">Ин., 63 зач., XX, 1&ndash;10.</a>&nbsp;Лит.: <a href=\"/bible/act/1/\">Деян., 1 зач., I, 1&ndash;8.</a>&nbsp;<a href=\"/bible/jn/1/\">Ин., 1 зач., I, 1&ndash;17.</a>",
+        "Лит.: <a href=\"/bible/rom/2/10/\">Рим., 79 зач., II, 10&ndash;16.</a>&nbsp;<a href=\"/bible/mt/4/18/\">Мф., 9 зач., IV, 18&ndash;23.</a>",
+        "Утр.: <a href=\"/bible/mk/16/9/\">Мк., 71 зач., XVI, 9&ndash;20.</a>&nbsp;Лит.: <a href=\"/bible/gal/2/16/\">Гал., 203 зач., II, 16&ndash;20.</a>&nbsp;<a href=\"/bible/lk/8/5/\">Лк., 35 зач., VIII, 5&ndash;15.</a>",
+        "Лит.: <a href=\"/bible/1cor/1/10/\">1 Кор., 124 зач., I, 10&ndash;18.</a>&nbsp;<a href=\"/bible/mt/14/14/\">Мф., 58 зач., XIV, 14&ndash;22.</a>"
+    };
+
+    private final int latency;
+    private final int jitter;
+    private final double errorRate;
+    private final File recordings;
+    private final int throttleConcurrency;
+    private final int retryAfter;
+
+    private final Random random = new Random(42);
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger throttled = new AtomicInteger();
+
+    private HttpServer server;
+    private ExecutorService executor;
+
+    /**
+     * Creates server (it is not started)
+     * @param latency             Response delay (in milliseconds)
+     * @param jitter              Maximum random deviation of delay (in milliseconds)
+     * @param errorRate           Share of requests which are answered with 503
+     * @param recordings          Directory with recorded pages (null to serve synthetic pages only)
+     * @param throttleConcurrency Number of requests in flight above which 429 is returned (0 to never throttle)
+     * @param retryAfter          Value of Retry-After header of 429 (in seconds, negative to omit header)
+     */
+    StubServer(int latency, int jitter, double errorRate, File recordings, int throttleConcurrency, int retryAfter) {
+        this.latency = latency;
+        this.jitter = jitter;
+        this.errorRate = errorRate;
+        this.recordings = recordings;
+        this.throttleConcurrency = throttleConcurrency;
+        this.retryAfter = retryAfter;
+    }
+
+    //==========================================================================
+    /**
+     * Starts server on loopback interface (port is chosen by system)
+     * @return Base URL of the server
+     * @throws IOException in case server can not be started
+     */
+    String start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.createContext("/bu/", new PageHandler("title"));
+        server.createContext("/rpc/", new PageHandler("kld"));
+        server.start();
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    /**
+     * Stops server
+     * @throws InterruptedException in case thread is interrupted while waiting for handlers
+     */
+    void stop() throws InterruptedException {
+        server.stop(0);
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.SECONDS);
+    }
+
+    int getRequestCount() {
+        return requests.get();
+    }
+
+    int getThrottledCount() {
+        return throttled.get();
+    }
+
+    /**
+     * Return maximum number of requests which were handled simultaneously
+     * @return Number of requests
+     */
+    int getMaxInFlight() {
+        return maxInFlight.get();
+    }
+
+    //==========================================================================
+    /**
+     * Handler which serves one kind of pages
+     */
+    private class PageHandler implements HttpHandler {
+
+        private final String kind;
+
+        PageHandler(String kind) {
+            this.kind = kind;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            int current = inFlight.incrementAndGet();
+            try {
+                requests.incrementAndGet();
+                int max = maxInFlight.get();
+                while (current > max && !maxInFlight.compareAndSet(max, current)) {
+                    max = maxInFlight.get();
+                }
+                if (throttleConcurrency > 0 && current > throttleConcurrency) {
+                    throttled.incrementAndGet();
+                    if (retryAfter >= 0) {
+                        exchange.getResponseHeaders().add("Retry-After", String.valueOf(retryAfter));
+                    }
+                    exchange.sendResponseHeaders(429, -1);
+                    return;
+                }
+                long delay;
+                boolean fail;
+                synchronized (random) {
+                    delay = latency + (jitter > 0 ? random.nextInt(2 * jitter + 1) - jitter : 0);
+                    fail = random.nextDouble() < errorRate;
+                }
+                if (delay > 0) {
+                    Thread.sleep(delay);
+                }
+                if (fail) {
+                    exchange.sendResponseHeaders(503, -1);
+                    return;
+                }
+                Matcher matcher = PATTERN_DATE.matcher(exchange.getRequestURI().getPath());
+                if (!matcher.find()) {
+                    exchange.sendResponseHeaders(404, -1);
+                    return;
+                }
+                byte[] body = loadPage(kind, LocalDate.parse(matcher.group(1)));
+                exchange.getResponseHeaders().add("Content-Type", kind.equals("kld") ? "text/xml; charset=utf-8" : "text/html; charset=utf-8");
+                String accepted = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+                if (accepted != null && accepted.contains("gzip")) {
+                    ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length);
+                    try (GZIPOutputStream output = new GZIPOutputStream(compressed)) {
+                        output.write(body);
+                    }
+                    body = compressed.toByteArray();
+                    exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+                }
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream output = exchange.getResponseBody()) {
+                    output.write(body);
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } finally {
+                inFlight.decrementAndGet();
+                exchange.close();
+            }
+        }
+    }
+
+    /**
+     * Loads recorded page or generates synthetic one
+     * @param kind Page kind ("kld" or "title")
+     * @param day  Day in question
+     * @return Page contents
+     * @throws IOException in case recording can not be read
+     */
+    private byte[] loadPage(String kind, LocalDate day) throws IOException {
+        if (recordings != null) {
+            File file = new File(recordings, kind + "/" + day + (kind.equals("kld") ? ".xml" : ".html"));
+            if (file.exists()) {
+                return Files.readAllBytes(file.toPath());
+            }
+        }
+        String page;
+        if (kind.equals("kld")) {
+            page = "<?xml version=\"1.0\" encoding=\"UTF-8\"?><kld><div class=\"title\">" + day + "</div><div class=\"read\">"
+                    + SYNTHETIC_READINGS[day.getDayOfYear() % SYNTHETIC_READINGS.length] + "</div> <div class=\"other\"></div></kld>";
+        } else {
+            page = "<html><body><a href=\"#\">Версия для печати</a><br> <p> <b>Седмица " + (day.getDayOfYear() / 7 + 1)
+                    + "-я по Пятидесятнице. Глас " + (day.getDayOfYear() % 8 + 1) + ".</b></p></body></html>";
+        }
+        return page.getBytes(StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,500 @@
+package org.alexsem.buparser;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.alexsem.buparser.model.LocationSet;
+import org.alexsem.buparser.util.TextNormalizer;
+import org.alexsem.buparser.util.VerseOrdinals;
+import org.alexsem.buparser.util.VerseRangeSet;
+
+/**
+ * Full-text index of one text field of verse text store (see TextNormalizer for word normalization).
+ * Terms are sorted (so prefix lookup is a binary search), postings of every term are
+ * delta-encoded variable-length ints: verse ordinal gap, number of positions, position gaps.
+ * <pre>
+ * Query syntax: words are combined with AND, "quoted words" form a phrase,
+ * word ending with * matches any word with this prefix (also within phrase)
+ * </pre>
+ * @author Semeniuk A.D.
+ */
+public class TextIndex {
+
+    private static final int MAGIC = 0x42555449; //"BUTI"
+    private static final short VERSION = 1;
+
+    private final VerseOrdinals ordinals;
+    private final String[] terms;
+    private final int[] offsets;
+    private final byte[] data;
+
+    private TextIndex(VerseOrdinals ordinals, String[] terms, int[] offsets, byte[] data) {
+        this.ordinals = ordinals;
+        this.terms = terms;
+        this.offsets = offsets;
+        this.data = data;
+    }
+
+    /**
+     * Return number of distinct terms
+     * @return Term count
+     */
+    public int getTermCount() {
+        return terms.length;
+    }
+
+    //==========================================================================
+    /**
+     * Finds verses which match query
+     * @param query Query (see class description)
+     * @return Sorted array of verse ordinals
+     */
+    public int[] search(String query) {
+        return search(query, null);
+    }
+
+    /**
+     * Finds verses within location set which match query
+     * @param query Query (see class description)
+     * @param scope Location set to search in (null to search everywhere)
+     * @return Sorted array of verse ordinals
+     */
+    public int[] search(String query, LocationSet scope) {
+        VerseRangeSet range = scope == null ? null : VerseRangeSet.of(ordinals, scope);
+        int[] result = null;
+        for (List<String> phrase : parseQuery(query)) {
+            Postings postings = findPhrase(phrase, range);
+            result = result == null ? postings.docs : intersect(result, postings.docs);
+            if (result.length == 0) {
+                break;
+            }
+        }
+        return result == null ? new int[0] : result;
+    }
+
+    /**
+     * Splits query into phrases (every single word is a phrase of one word)
+     * @param query Query
+     * @return List of phrases, every phrase is a list of words (prefix words end with *)
+     */
+    private static List<List<String>> parseQuery(String query) {
+        List<List<String>> result = new ArrayList<>();
+        boolean quoted = false;
+        for (String part : query.split("\"", -1)) {
+            if (quoted) {
+                List<String> phrase = splitWords(part);
+                if (!phrase.isEmpty()) {
+                    result.add(phrase);
+                }
+            } else {
+                for (String word : splitWords(part)) {
+                    List<String> single = new ArrayList<>(1);
+                    single.add(word);
+                    result.add(single);
+                }
+            }
+            quoted = !quoted;
+        }
+        return result;
+    }
+
+    private static List<String> splitWords(String text) {
+        List<String> result = new ArrayList<>();
+        for (String word : text.trim().split("\\s+")) {
+            boolean prefix = word.endsWith("*");
+            int size = result.size();
+            for (String token : TextNormalizer.tokenize(word)) {
+                result.add(token);
+            }
+            if (prefix && result.size() > size) {
+                result.set(result.size() - 1, result.get(result.size() - 1) + "*");
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Finds verses which contain words of phrase one after another
+     * @param phrase List of words
+     * @param scope  Verses to search in (null to search everywhere)
+     * @return Postings of the first word of phrase occurrences
+     */
+    private Postings findPhrase(List<String> phrase, VerseRangeSet scope) {
+        Postings result = findWord(phrase.get(0), scope);
+        for (int i = 1; i < phrase.size() && result.docs.length > 0; i++) {
+            result = follow(result, findWord(phrase.get(i), scope), i);
+        }
+        return result;
+    }
+
+    /**
+     * Return postings of word (or of all words with the prefix)
+     * @param word  Normalized word (prefix if it ends with *)
+     * @param scope Verses to search in (null to search everywhere)
+     * @return Postings
+     */
+    private Postings findWord(String word, VerseRangeSet scope) {
+        int from;
+        int to;
+        if (word.endsWith("*")) {
+            String prefix = word.substring(0, word.length() - 1);
+            from = lowerBound(prefix);
+            to = lowerBound(prefix + Character.MAX_VALUE);
+        } else {
+            from = Arrays.binarySearch(terms, word);
+            to = from + 1;
+            if (from < 0) {
+                return Postings.EMPTY;
+            }
+        }
+        if (from >= to) {
+            return Postings.EMPTY;
+        }
+        if (to - from == 1) {
+            return decode(from, scope);
+        }
+        //Several terms: merge occurrences by (verse, position)
+        long[] merged = new long[16];
+        int size = 0;
+        for (int term = from; term < to; term++) {
+            Postings postings = decode(term, scope);
+            for (int i = 0; i < postings.docs.length; i++) {
+                for (int j = postings.starts[i]; j < postings.starts[i + 1]; j++) {
+                    if (size == merged.length) {
+                        merged = Arrays.copyOf(merged, size * 2);
+                    }
+                    merged[size++] = ((long) postings.docs[i] << 32) | postings.positions[j];
+                }
+            }
+        }
+        Arrays.sort(merged, 0, size);
+        Postings.Builder builder = new Postings.Builder();
+        for (int i = 0; i < size; i++) {
+            builder.add((int) (merged[i] >>> 32), (int) merged[i]);
+        }
+        return builder.build();
+    }
+
+    private int lowerBound(String key) {
+        int position = Arrays.binarySearch(terms, key);
+        return position >= 0 ? position : -position - 1;
+    }
+
+    /**
+     * Return occurrences of the first postings which are followed by the second postings at the specific distance
+     */
+    private static Postings follow(Postings first, Postings second, int distance) {
+        Postings.Builder builder = new Postings.Builder();
+        int i = 0;
+        int j = 0;
+        while (i < first.docs.length && j < second.docs.length) {
+            if (first.docs[i] < second.docs[j]) {
+                i++;
+            } else if (first.docs[i] > second.docs[j]) {
+                j++;
+            } else {
+                int a = first.starts[i];
+                int b = second.starts[j];
+                while (a < first.starts[i + 1] && b < second.starts[j + 1]) {
+                    int expected = first.positions[a] + distance;
+                    if (second.positions[b] < expected) {
+                        b++;
+                    } else {
+                        if (second.positions[b] == expected) {
+                            builder.add(first.docs[i], first.positions[a]);
+                        }
+                        a++;
+                    }
+                }
+                i++;
+                j++;
+            }
+        }
+        return builder.build();
+    }
+
+    private static int[] intersect(int[] a, int[] b) {
+        int[] result = new int[Math.min(a.length, b.length)];
+        int size = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                result[size++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return size == result.length ? result : Arrays.copyOf(result, size);
+    }
+
+    /**
+     * Decodes postings of the specific term
+     * @param term  Term index
+     * @param scope Verses to keep (null to keep all)
+     * @return Decoded postings
+     */
+    private Postings decode(int term, VerseRangeSet scope) {
+        Postings.Builder builder = new Postings.Builder();
+        int[] cursor = {offsets[term]};
+        int end = offsets[term + 1];
+        int doc = 0;
+        while (cursor[0] < end) {
+            doc += readVarInt(cursor);
+            int count = readVarInt(cursor);
+            boolean keep = scope == null || scope.contains(doc);
+            int position = 0;
+            for (int i = 0; i < count; i++) {
+                position += readVarInt(cursor);
+                if (keep) {
+                    builder.add(doc, position);
+                }
+            }
+        }
+        return builder.build();
+    }
+
+    private int readVarInt(int[] cursor) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = data[cursor[0]++];
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    //==========================================================================
+    /**
+     * Occurrences of word: verses and positions of word within every verse
+     */
+    private static class Postings {
+
+        static final Postings EMPTY = new Postings(new int[0], new int[1], new int[0]);
+
+        final int[] docs;
+        final int[] starts;
+        final int[] positions;
+
+        Postings(int[] docs, int[] starts, int[] positions) {
+            this.docs = docs;
+            this.starts = starts;
+            this.positions = positions;
+        }
+
+        /**
+         * Builder which expects occurrences sorted by verse and position
+         */
+        static class Builder {
+
+            private int[] docs = new int[16];
+            private int[] starts = new int[17];
+            private int[] positions = new int[16];
+            private int docCount = 0;
+            private int positionCount = 0;
+
+            void add(int doc, int position) {
+                if (docCount == 0 || docs[docCount - 1] != doc) {
+                    if (docCount == docs.length) {
+                        docs = Arrays.copyOf(docs, docCount * 2);
+                        starts = Arrays.copyOf(starts, docCount * 2 + 1);
+                    }
+                    docs[docCount] = doc;
+                    starts[docCount] = positionCount;
+                    docCount++;
+                } else if (positions[positionCount - 1] == position) { //Duplicate occurrence
+                    return;
+                }
+                if (positionCount == positions.length) {
+                    positions = Arrays.copyOf(positions, positionCount * 2);
+                }
+                positions[positionCount++] = position;
+            }
+
+            Postings build() {
+                if (docCount == 0) {
+                    return EMPTY;
+                }
+                int[] resultStarts = Arrays.copyOf(starts, docCount + 1);
+                resultStarts[docCount] = positionCount;
+                return new Postings(Arrays.copyOf(docs, docCount), resultStarts, Arrays.copyOf(positions, positionCount));
+            }
+        }
+    }
+
+    //==========================================================================
+    /**
+     * Loads index from file (file is read at once)
+     * @param file     Index file
+     * @param ordinals Verse ordinals the index was built with
+     * @return Loaded index
+     * @throws IOException in case file can not be read or has wrong format
+     */
+    public static TextIndex load(File file, VerseOrdinals ordinals) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        if (buffer.remaining() < 14 || buffer.getInt() != MAGIC || buffer.getShort() != VERSION) {
+            throw new IOException("Not a text index: " + file);
+        }
+        if (buffer.getInt() != ordinals.getVerseCount()) {
+            throw new IOException("Text index was built for different metadata: " + file);
+        }
+        String[] terms = new String[buffer.getInt()];
+        for (int i = 0; i < terms.length; i++) {
+            byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+            buffer.get(bytes);
+            terms[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+        int[] offsets = new int[terms.length + 1];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = buffer.getInt();
+        }
+        byte[] data = new byte[offsets[terms.length]];
+        buffer.get(data);
+        return new TextIndex(ordinals, terms, offsets, data);
+    }
+
+    /**
+     * Saves index to file
+     * @param file Index file
+     * @throws IOException in case file can not be written
+     */
+    public void save(File file) throws IOException {
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            output.writeInt(MAGIC);
+            output.writeShort(VERSION);
+            output.writeInt(ordinals.getVerseCount());
+            output.writeInt(terms.length);
+            for (String term : terms) {
+                byte[] bytes = term.getBytes(StandardCharsets.UTF_8);
+                output.writeShort(bytes.length);
+                output.write(bytes);
+            }
+            for (int offset : offsets) {
+                output.writeInt(offset);
+            }
+            output.write(data);
+        }
+    }
+
+    //==========================================================================
+    /**
+     * Class which builds text index (verses must be added in order of their ordinals)
+     */
+    public static class Builder {
+
+        private final VerseOrdinals ordinals;
+        private final Map<String, int[]> postings = new HashMap<>(); //{size, ordinal, position, ordinal, position...}
+        private int lastOrdinal = -1;
+
+        /**
+         * Creates empty builder
+         * @param ordinals Verse ordinals
+         */
+        public Builder(VerseOrdinals ordinals) {
+            this.ordinals = ordinals;
+        }
+
+        /**
+         * Adds text of the specific verse
+         * @param ordinal Verse ordinal
+         * @param text    Verse text
+         * @return This builder
+         */
+        public Builder add(int ordinal, String text) {
+            if (ordinal <= lastOrdinal || ordinal >= ordinals.getVerseCount()) {
+                throw new IllegalArgumentException("Verses must be added in order of ordinals: " + ordinal);
+            }
+            lastOrdinal = ordinal;
+            List<String> words = TextNormalizer.tokenize(text);
+            for (int position = 0; position < words.size(); position++) {
+                String word = words.get(position);
+                int[] list = postings.get(word);
+                if (list == null) {
+                    list = new int[9];
+                    postings.put(word, list);
+                } else if (list[0] + 3 > list.length) {
+                    list = Arrays.copyOf(list, list.length * 2);
+                    postings.put(word, list);
+                }
+                list[list[0] + 1] = ordinal;
+                list[list[0] + 2] = position;
+                list[0] += 2;
+            }
+            return this;
+        }
+
+        /**
+         * Adds the specific text field of all verses of text store
+         * @param store Verse text store
+         * @param field Field (VerseTextStore.FIELD_CS or VerseTextStore.FIELD_RU)
+         * @return This builder
+         */
+        public Builder addAll(VerseTextStore store, int field) {
+            for (int ordinal = lastOrdinal + 1; ordinal < ordinals.getVerseCount(); ordinal++) {
+                add(ordinal, store.getText(ordinal, field));
+            }
+            return this;
+        }
+
+        /**
+         * Builds index
+         * @return Built index
+         */
+        public TextIndex build() {
+            String[] terms = postings.keySet().toArray(new String[0]);
+            Arrays.sort(terms);
+            int[] offsets = new int[terms.length + 1];
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            for (int t = 0; t < terms.length; t++) {
+                offsets[t] = data.size();
+                int[] list = postings.get(terms[t]);
+                int size = list[0];
+                int previousDoc = 0;
+                for (int i = 1; i <= size; ) {
+                    int doc = list[i];
+                    int count = 0;
+                    while (i + count * 2 <= size && list[i + count * 2] == doc) {
+                        count++;
+                    }
+                    writeVarInt(data, doc - previousDoc);
+                    writeVarInt(data, count);
+                    int previousPosition = 0;
+                    for (int k = 0; k < count; k++) {
+                        writeVarInt(data, list[i + k * 2 + 1] - previousPosition);
+                        previousPosition = list[i + k * 2 + 1];
+                    }
+                    previousDoc = doc;
+                    i += count * 2;
+                }
+            }
+            offsets[terms.length] = data.size();
+            return new TextIndex(ordinals, terms, offsets, data.toByteArray());
+        }
+
+        private static void writeVarInt(ByteArrayOutputStream output, int value) {
+            while ((value & ~0x7F) != 0) {
+                output.write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            output.write(value);
+        }
+    }
+
+}
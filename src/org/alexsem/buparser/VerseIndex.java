@@ -0,0 +1,373 @@
+package org.alexsem.buparser;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import org.alexsem.buparser.model.LocationSet;
+import org.alexsem.buparser.model.Metadata;
+import org.alexsem.buparser.util.LocationCalculator;
+import org.alexsem.buparser.util.VerseOrdinals;
+
+/**
+ * Inverted index which maps every verse to the list of days on which it is read.
+ * Every posting is packed into one int: (epoch day &lt;&lt; 2) | reading slot.
+ * Posting lists are sorted and delta-encoded (variable-length ints)
+ * @author Semeniuk A.D.
+ */
+public class VerseIndex {
+
+    public static final int SLOT_OLD = 0;
+    public static final int SLOT_APOSTLE = 1;
+    public static final int SLOT_GOSPEL = 2;
+
+    private static final int MAGIC = 0x42555649; //"BUVI"
+    private static final short VERSION = 1;
+
+    private final VerseOrdinals ordinals;
+    private final int[] years;
+    private final int[] offsets;
+    private final byte[] data;
+
+    private VerseIndex(VerseOrdinals ordinals, int[] years, int[] offsets, byte[] data) {
+        this.ordinals = ordinals;
+        this.years = years;
+        this.offsets = offsets;
+        this.data = data;
+    }
+
+    //==========================================================================
+    /**
+     * Return day of the specific posting
+     * @param posting Packed posting
+     * @return Day
+     */
+    public static LocalDate getDay(int posting) {
+        return LocalDate.ofEpochDay(posting >>> 2);
+    }
+
+    /**
+     * Return reading slot of the specific posting
+     * @param posting Packed posting
+     * @return One of SLOT_OLD, SLOT_APOSTLE, SLOT_GOSPEL
+     */
+    public static int getSlot(int posting) {
+        return posting & 3;
+    }
+
+    /**
+     * Return years which are covered by this index
+     * @return Sorted array of years
+     */
+    public int[] getYears() {
+        return years.clone();
+    }
+
+    /**
+     * Return all postings of the specific verse
+     * @param ordinal Verse ordinal
+     * @return Sorted array of packed postings
+     */
+    public int[] getPostings(int ordinal) {
+        int[] result = new int[countPostings(ordinal)];
+        decode(ordinal, result, 0);
+        return result;
+    }
+
+    /**
+     * Return all postings of the specific chapter
+     * @param book    Book index (1-based)
+     * @param chapter Chapter index (1-based)
+     * @return Sorted array of unique packed postings
+     */
+    public int[] findChapter(int book, int chapter) {
+        int start = ordinals.getChapterStart(book, chapter);
+        int size = ordinals.getChapterSize(book, chapter);
+        int[] verses = new int[size];
+        for (int i = 0; i < size; i++) {
+            verses[i] = start + i;
+        }
+        return merge(verses);
+    }
+
+    /**
+     * Return all postings of verses which are referenced by location set
+     * @param set Location set
+     * @return Sorted array of unique packed postings
+     */
+    public int[] find(LocationSet set) {
+        return merge(ordinals.toOrdinals(set));
+    }
+
+    private int[] merge(int[] verses) {
+        int count = 0;
+        for (int verse : verses) {
+            count += countPostings(verse);
+        }
+        int[] result = new int[count];
+        int size = 0;
+        for (int verse : verses) {
+            size = decode(verse, result, size);
+        }
+        Arrays.sort(result);
+        int unique = 0;
+        for (int i = 0; i < size; i++) {
+            if (unique == 0 || result[unique - 1] != result[i]) {
+                result[unique++] = result[i];
+            }
+        }
+        return unique == result.length ? result : Arrays.copyOf(result, unique);
+    }
+
+    private int countPostings(int ordinal) {
+        int count = 0;
+        for (int i = offsets[ordinal]; i < offsets[ordinal + 1]; i++) {
+            if ((data[i] & 0x80) == 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private int decode(int ordinal, int[] target, int position) {
+        int value = 0;
+        int i = offsets[ordinal];
+        int end = offsets[ordinal + 1];
+        while (i < end) {
+            int delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[i++];
+                delta |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            value += delta;
+            target[position++] = value;
+        }
+        return position;
+    }
+
+    //==========================================================================
+    /**
+     * Loads index from file (file is read at once)
+     * @param file     Index file
+     * @param ordinals Verse ordinals the index was built with
+     * @return Loaded index
+     * @throws IOException in case file can not be read or has wrong format
+     */
+    public static VerseIndex load(File file, VerseOrdinals ordinals) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        if (buffer.remaining() < 14 || buffer.getInt() != MAGIC || buffer.getShort() != VERSION) {
+            throw new IOException("Not a verse index: " + file);
+        }
+        int verseCount = buffer.getInt();
+        if (verseCount != ordinals.getVerseCount()) {
+            throw new IOException("Verse index was built for different metadata: " + file);
+        }
+        int[] years = new int[buffer.getInt()];
+        for (int i = 0; i < years.length; i++) {
+            years[i] = buffer.getInt();
+        }
+        int[] offsets = new int[verseCount + 1];
+        for (int i = 0; i <= verseCount; i++) {
+            offsets[i] = buffer.getInt();
+        }
+        byte[] data = new byte[offsets[verseCount]];
+        buffer.get(data);
+        return new VerseIndex(ordinals, years, offsets, data);
+    }
+
+    /**
+     * Saves index to file
+     * @param file Index file
+     * @throws IOException in case file can not be written
+     */
+    public void save(File file) throws IOException {
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            output.writeInt(MAGIC);
+            output.writeShort(VERSION);
+            output.writeInt(offsets.length - 1);
+            output.writeInt(years.length);
+            for (int year : years) {
+                output.writeInt(year);
+            }
+            for (int offset : offsets) {
+                output.writeInt(offset);
+            }
+            output.write(data);
+        }
+    }
+
+    /**
+     * Creates builder which contains all postings of this index (used for incremental updates)
+     * @param metadata Metadata which is used to resolve readings
+     * @return Builder
+     */
+    public Builder toBuilder(Metadata metadata) {
+        Builder builder = new Builder(metadata, ordinals);
+        for (int year : years) {
+            builder.years.add(year);
+        }
+        for (int i = 0; i < offsets.length - 1; i++) {
+            int[] postings = getPostings(i);
+            if (postings.length > 0) { //Verses without postings stay null, as in new builder
+                builder.lists[i] = postings;
+                builder.sizes[i] = postings.length;
+            }
+        }
+        return builder;
+    }
+
+    //==========================================================================
+    /**
+     * Class which builds (or updates) verse index from generated calendars
+     */
+    public static class Builder {
+
+        private final Metadata metadata;
+        private final VerseOrdinals ordinals;
+        private final int[][] lists;
+        private final int[] sizes;
+        private final TreeSet<Integer> years = new TreeSet<>();
+        private final Map<String, int[]> resolved = new HashMap<>();
+
+        /**
+         * Creates empty builder
+         * @param metadata Metadata which is used to resolve readings
+         * @param ordinals Verse ordinals built from the same metadata
+         */
+        public Builder(Metadata metadata, VerseOrdinals ordinals) {
+            this.metadata = metadata;
+            this.ordinals = ordinals;
+            this.lists = new int[ordinals.getVerseCount()][];
+            this.sizes = new int[ordinals.getVerseCount()];
+        }
+
+        /**
+         * Adds (or replaces) all readings of the specific year
+         * @param store Calendar store which contains the year
+         * @param year  Year in question
+         * @return This builder
+         * @throws IOException in case calendar entries can not be read
+         */
+        public Builder addYear(CalendarStore store, int year) throws IOException {
+            final LocalDate from = LocalDate.of(year, 1, 1);
+            final LocalDate to = LocalDate.of(year, 12, 31);
+            if (years.contains(year)) {
+                removeRange((int) from.toEpochDay(), (int) to.toEpochDay());
+            }
+            years.add(year);
+            store.forEach(from, to, new CalendarStore.Visitor() {
+                @Override
+                public void visit(LocalDate day, CalendarEntry entry) {
+                    int epochDay = (int) day.toEpochDay();
+                    addLines(epochDay, SLOT_OLD, entry.getReadingsOld());
+                    addLines(epochDay, SLOT_APOSTLE, entry.getReadingsApostle());
+                    addLines(epochDay, SLOT_GOSPEL, entry.getReadingsGospel());
+                }
+            });
+            return this;
+        }
+
+        private void addLines(int epochDay, int slot, List<CalendarEntry.Line> lines) {
+            int posting = (epochDay << 2) | slot;
+            for (CalendarEntry.Line line : lines) {
+                for (int ordinal : resolve(line.getLink())) {
+                    add(ordinal, posting);
+                }
+            }
+        }
+
+        /**
+         * Resolves link into verse ordinals (every distinct link is parsed only once)
+         * @param link Link in question
+         * @return Sorted array of verse ordinals
+         */
+        private int[] resolve(String link) {
+            if (link == null || link.isEmpty()) {
+                return new int[0];
+            }
+            int[] result = resolved.get(link);
+            if (result == null) {
+                LocationSet set = LocationCalculator.parseSearchString(metadata, link);
+                result = ordinals.toOrdinals(set);
+                resolved.put(link, result);
+            }
+            return result;
+        }
+
+        private void add(int ordinal, int posting) {
+            int[] list = lists[ordinal];
+            if (list == null) {
+                list = lists[ordinal] = new int[4];
+            } else if (sizes[ordinal] == list.length) {
+                list = lists[ordinal] = Arrays.copyOf(list, Math.max(4, list.length * 2));
+            }
+            list[sizes[ordinal]++] = posting;
+        }
+
+        private void removeRange(int fromDay, int toDay) {
+            for (int i = 0; i < lists.length; i++) {
+                int[] list = lists[i];
+                int size = 0;
+                for (int j = 0; j < sizes[i]; j++) {
+                    int day = list[j] >>> 2;
+                    if (day < fromDay || day > toDay) {
+                        list[size++] = list[j];
+                    }
+                }
+                sizes[i] = size;
+            }
+        }
+
+        /**
+         * Builds index
+         * @return Built index
+         */
+        public VerseIndex build() {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            int[] offsets = new int[lists.length + 1];
+            for (int i = 0; i < lists.length; i++) {
+                offsets[i] = output.size();
+                int[] list = lists[i];
+                int size = sizes[i];
+                if (size == 0) {
+                    continue;
+                }
+                Arrays.sort(list, 0, size);
+                int previous = 0;
+                for (int j = 0; j < size; j++) {
+                    if (j > 0 && list[j] == list[j - 1]) {
+                        continue;
+                    }
+                    int delta = list[j] - previous;
+                    previous = list[j];
+                    while ((delta & ~0x7F) != 0) {
+                        output.write((delta & 0x7F) | 0x80);
+                        delta >>>= 7;
+                    }
+                    output.write(delta);
+                }
+            }
+            offsets[lists.length] = output.size();
+            int[] yearArray = new int[years.size()];
+            int i = 0;
+            for (int year : years) {
+                yearArray[i++] = year;
+            }
+            return new VerseIndex(ordinals, yearArray, offsets, output.toByteArray());
+        }
+    }
+
+}
@@ -0,0 +1,322 @@
+package org.alexsem.buparser;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import org.alexsem.buparser.model.Line;
+import org.alexsem.buparser.model.LocationSet;
+import org.alexsem.buparser.util.VerseOrdinals;
+import org.alexsem.buparser.util.VerseRangeSet;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+/**
+ * Store of verse texts (Church Slavonic, Russian, parallel references and ghost flag) keyed by verse ordinal.
+ * File is memory-mapped and texts are decoded only when they are requested:
+ * <pre>
+ * int magic ("BUVT"), short version, int verseCount,
+ * int[verseCount * FIELD_COUNT + 1] offsets of every field of every verse within data section,
+ * byte[verseCount] flags, byte[] data (UTF-8)
+ * </pre>
+ * Buffer is only read with absolute methods, so one store may be used by many threads
+ * @author Semeniuk A.D.
+ */
+public class VerseTextStore {
+
+    public static final int FIELD_CS = 0;
+    public static final int FIELD_RU = 1;
+    public static final int FIELD_PARALLEL = 2;
+
+    private static final int FIELD_COUNT = 3;
+    private static final int FLAG_GHOST = 1;
+    private static final int MAGIC = 0x42555654; //"BUVT"
+    private static final short VERSION = 1;
+    private static final int HEADER_SIZE = 10;
+
+    private final VerseOrdinals ordinals;
+    private final ByteBuffer buffer;
+    private final int verseCount;
+    private final int flagsStart;
+    private final int dataStart;
+
+    /**
+     * Visitor of verses which belong to location set
+     */
+    public interface Visitor {
+
+        /**
+         * Called for every verse in canonical order
+         * @param store   Store (texts of verse may be requested from it)
+         * @param ordinal Verse ordinal
+         * @param book    Book index (1-based)
+         * @param chapter Chapter index (1-based)
+         * @param verse   Verse index (1-based)
+         */
+        void visit(VerseTextStore store, int ordinal, int book, int chapter, int verse);
+    }
+
+    private VerseTextStore(VerseOrdinals ordinals, ByteBuffer buffer) throws IOException {
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getShort(4) != VERSION) {
+            throw new IOException("Not a verse text store");
+        }
+        this.ordinals = ordinals;
+        this.buffer = buffer;
+        this.verseCount = buffer.getInt(6);
+        if (verseCount != ordinals.getVerseCount()) {
+            throw new IOException("Verse text store was built for different metadata");
+        }
+        this.flagsStart = HEADER_SIZE + (verseCount * FIELD_COUNT + 1) * 4;
+        this.dataStart = flagsStart + verseCount;
+        if (dataStart > buffer.limit() || dataStart + (long) buffer.getInt(flagsStart - 4) > buffer.limit()) {
+            throw new IOException("Verse text store is truncated");
+        }
+    }
+
+    /**
+     * Opens store file (file is memory-mapped)
+     * @param file     Store file
+     * @param ordinals Verse ordinals the store was built with
+     * @return Opened store
+     * @throws IOException in case file can not be read or has wrong format
+     */
+    public static VerseTextStore open(File file, VerseOrdinals ordinals) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return new VerseTextStore(ordinals, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    public VerseOrdinals getOrdinals() {
+        return ordinals;
+    }
+
+    //==========================================================================
+    /**
+     * Checks whether store contains any text for the specific verse
+     * @param ordinal Verse ordinal
+     * @return true if verse has Church Slavonic or Russian text
+     */
+    public boolean hasText(int ordinal) {
+        return getLength(ordinal, FIELD_CS) > 0 || getLength(ordinal, FIELD_RU) > 0;
+    }
+
+    /**
+     * Return the specific text of the specific verse
+     * @param ordinal Verse ordinal
+     * @param field   Field (FIELD_CS, FIELD_RU or FIELD_PARALLEL)
+     * @return Decoded text (empty if missing)
+     */
+    public String getText(int ordinal, int field) {
+        int length = getLength(ordinal, field);
+        if (length == 0) {
+            return "";
+        }
+        return StandardCharsets.UTF_8.decode(buffer.slice(dataStart + getOffset(ordinal, field), length)).toString();
+    }
+
+    /**
+     * Decodes the specific text of the specific verse directly into builder (nothing is allocated)
+     * @param ordinal Verse ordinal
+     * @param field   Field (FIELD_CS, FIELD_RU or FIELD_PARALLEL)
+     * @param builder Builder to append text to
+     * @return The same builder
+     */
+    public StringBuilder appendText(int ordinal, int field, StringBuilder builder) {
+        int position = dataStart + getOffset(ordinal, field);
+        int end = position + getLength(ordinal, field);
+        while (position < end) {
+            int b = buffer.get(position++) & 0xFF;
+            int code;
+            if (b < 0x80) {
+                code = b;
+            } else if (b < 0xE0) {
+                code = ((b & 0x1F) << 6) | (buffer.get(position++) & 0x3F);
+            } else if (b < 0xF0) {
+                code = ((b & 0x0F) << 12) | ((buffer.get(position++) & 0x3F) << 6) | (buffer.get(position++) & 0x3F);
+            } else {
+                code = ((b & 0x07) << 18) | ((buffer.get(position++) & 0x3F) << 12)
+                        | ((buffer.get(position++) & 0x3F) << 6) | (buffer.get(position++) & 0x3F);
+            }
+            builder.appendCodePoint(code);
+        }
+        return builder;
+    }
+
+    /**
+     * Checks whether verse should be half-visible
+     * @param ordinal Verse ordinal
+     * @return true if verse is ghost
+     */
+    public boolean isGhost(int ordinal) {
+        checkOrdinal(ordinal);
+        return (buffer.get(flagsStart + ordinal) & FLAG_GHOST) != 0;
+    }
+
+    /**
+     * Creates line with all data of the specific verse
+     * @param ordinal Verse ordinal
+     * @return Created line
+     */
+    public Line getLine(int ordinal) {
+        Line line = new Line(String.valueOf(ordinals.getVerse(ordinal)));
+        line.setCsText(getText(ordinal, FIELD_CS));
+        line.setRuText(getText(ordinal, FIELD_RU));
+        if (getLength(ordinal, FIELD_PARALLEL) > 0) {
+            line.parseParallel(getText(ordinal, FIELD_PARALLEL));
+        }
+        line.setGhost(isGhost(ordinal));
+        return line;
+    }
+
+    /**
+     * Visits all verses of location set in canonical order (verses are walked range by range,
+     * no objects are created per verse)
+     * @param set     Location set
+     * @param visitor Visitor
+     */
+    public void forEach(LocationSet set, Visitor visitor) {
+        VerseRangeSet ranges = VerseRangeSet.of(ordinals, set);
+        for (int i = 0; i < ranges.getRangeCount(); i++) {
+            int ordinal = ranges.getRangeStart(i);
+            int last = ranges.getRangeEnd(i);
+            while (ordinal <= last) {
+                int book = ordinals.getBook(ordinal);
+                int chapter = ordinals.getChapter(ordinal);
+                int chapterStart = ordinals.getChapterStart(book, chapter);
+                int end = Math.min(last, chapterStart + ordinals.getChapterSize(book, chapter) - 1);
+                for (; ordinal <= end; ordinal++) {
+                    visitor.visit(this, ordinal, book, chapter, ordinal - chapterStart + 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Renders texts of all verses of location set (one verse per line, prefixed with verse number)
+     * @param set     Location set
+     * @param field   Field (FIELD_CS or FIELD_RU)
+     * @param builder Builder to append text to
+     * @return The same builder
+     */
+    public StringBuilder render(LocationSet set, final int field, final StringBuilder builder) {
+        forEach(set, new Visitor() {
+            @Override
+            public void visit(VerseTextStore store, int ordinal, int book, int chapter, int verse) {
+                builder.append(verse).append(' ');
+                appendText(ordinal, field, builder).append('\n');
+            }
+        });
+        return builder;
+    }
+
+    private int getOffset(int ordinal, int field) {
+        checkOrdinal(ordinal);
+        return buffer.getInt(HEADER_SIZE + (ordinal * FIELD_COUNT + field) * 4);
+    }
+
+    private int getLength(int ordinal, int field) {
+        checkOrdinal(ordinal);
+        int index = HEADER_SIZE + (ordinal * FIELD_COUNT + field) * 4;
+        return buffer.getInt(index + 4) - buffer.getInt(index);
+    }
+
+    private void checkOrdinal(int ordinal) {
+        if (ordinal < 0 || ordinal >= verseCount) {
+            throw new IndexOutOfBoundsException("Verse ordinal out of bounds: " + ordinal);
+        }
+    }
+
+    //==========================================================================
+    /**
+     * Imports verse texts from XML and writes store file. Expected format:
+     * <pre>
+     * &lt;bible&gt;
+     *   &lt;book ord="1"&gt;
+     *     &lt;chapter ord="1"&gt;
+     *       &lt;line ord="1" ghost="false" parallel="Ин. 1:1;Евр. 11:3"&gt;
+     *         &lt;cs&gt;...&lt;/cs&gt; &lt;ru&gt;...&lt;/ru&gt;
+     *       &lt;/line&gt;
+     * </pre>
+     * Verses which do not exist in metadata are skipped, missing verses are stored empty
+     * @param input    Stream to read XML from (UTF-8, stream is closed)
+     * @param ordinals Verse ordinals
+     * @param file     Store file to write
+     * @return Number of imported verses
+     * @throws XmlPullParserException in case XML parsing fails
+     * @throws IOException            in case reading or writing fails
+     */
+    public static int importXML(InputStream input, VerseOrdinals ordinals, File file) throws XmlPullParserException, IOException {
+        int count = ordinals.getVerseCount();
+        byte[][] texts = new byte[count * FIELD_COUNT][];
+        byte[] flags = new byte[count];
+        int imported = 0;
+        XmlPullParser xpp = XmlPullParserFactory.newInstance().newPullParser();
+        try {
+            xpp.setInput(input, "UTF-8");
+            int book = 0;
+            int chapter = 0;
+            int ordinal = -1;
+            while (xpp.getEventType() != XmlPullParser.END_DOCUMENT) {
+                if (xpp.getEventType() == XmlPullParser.START_TAG) {
+                    String name = xpp.getName();
+                    if (name.equalsIgnoreCase("book")) {
+                        book = Integer.parseInt(xpp.getAttributeValue(null, "ord"));
+                    } else if (name.equalsIgnoreCase("chapter")) {
+                        chapter = Integer.parseInt(xpp.getAttributeValue(null, "ord"));
+                    } else if (name.equalsIgnoreCase("line")) {
+                        ordinal = ordinals.getOrdinal(book, chapter, Integer.parseInt(xpp.getAttributeValue(null, "ord")));
+                        if (ordinal >= 0) {
+                            imported++;
+                            if (Boolean.parseBoolean(xpp.getAttributeValue(null, "ghost"))) {
+                                flags[ordinal] |= FLAG_GHOST;
+                            }
+                            String parallel = xpp.getAttributeValue(null, "parallel");
+                            if (parallel != null) {
+                                texts[ordinal * FIELD_COUNT + FIELD_PARALLEL] = parallel.getBytes(StandardCharsets.UTF_8);
+                            }
+                        }
+                    } else if (ordinal >= 0 && name.equalsIgnoreCase("cs")) {
+                        texts[ordinal * FIELD_COUNT + FIELD_CS] = xpp.nextText().trim().getBytes(StandardCharsets.UTF_8);
+                    } else if (ordinal >= 0 && name.equalsIgnoreCase("ru")) {
+                        texts[ordinal * FIELD_COUNT + FIELD_RU] = xpp.nextText().trim().getBytes(StandardCharsets.UTF_8);
+                    }
+                } else if (xpp.getEventType() == XmlPullParser.END_TAG && xpp.getName().equalsIgnoreCase("line")) {
+                    ordinal = -1;
+                }
+                xpp.next();
+            }
+        } finally {
+            input.close();
+        }
+        write(file, texts, flags);
+        return imported;
+    }
+
+    private static void write(File file, byte[][] texts, byte[] flags) throws IOException {
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            output.writeInt(MAGIC);
+            output.writeShort(VERSION);
+            output.writeInt(flags.length);
+            int offset = 0;
+            for (byte[] text : texts) {
+                output.writeInt(offset);
+                offset += text == null ? 0 : text.length;
+            }
+            output.writeInt(offset);
+            output.write(flags);
+            for (byte[] text : texts) {
+                if (text != null) {
+                    output.write(text);
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,22 @@
+package org.alexsem.buparser.model;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Interface for sources of chapter data of books which were loaded without chapters.
+ * Metadata calls provider at most once per book (on first access) and caches the result,
+ * so implementation may be slow, but it must be thread-safe
+ * @author Semeniuk A.D.
+ */
+public interface ChapterProvider {
+
+    /**
+     * Loads chapters of the specific book
+     * @param book Book in question
+     * @return List of chapters (in any order)
+     * @throws IOException in case chapters can not be loaded
+     */
+    List<Chapter> loadChapters(Book book) throws IOException;
+
+}
@@ -2,10 +2,16 @@ package org.alexsem.buparser.model;
 
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import org.alexsem.buparser.util.CsNumber;
 
 /**
@@ -14,8 +20,49 @@ import org.alexsem.buparser.util.CsNumber;
  */
 public class Metadata {
 
+    private static final int TITLE_RU = 0;
+    private static final int TITLE_RU_COMPLEX = 1;
+    private static final int TITLE_CS = 2;
+
     private List<Book> mBookList;
     private Map<String, Book> mBookMap;
+    private volatile TitleCache mTitleCache;
+    private volatile boolean mFrozen;
+    private volatile ChapterProvider mChapterProvider;
+    private final AtomicReference<AtomicReferenceArray<FutureTask<List<Chapter>>>> mChapterTasks = new AtomicReference<>();
+
+    /**
+     * Chapter titles of every variant, built lazily per book.
+     * Array elements are published through AtomicReferenceArray, so cache may be shared between threads
+     */
+    private static class TitleCache {
+
+        final AtomicReferenceArray<String[]> ruTitles;
+        final AtomicReferenceArray<String[]> ruComplexTitles;
+        final AtomicReferenceArray<String[]> csTitles;
+
+        TitleCache(int bookCount) {
+            ruTitles = new AtomicReferenceArray<>(bookCount);
+            ruComplexTitles = new AtomicReferenceArray<>(bookCount);
+            csTitles = new AtomicReferenceArray<>(bookCount);
+        }
+
+        /**
+         * Return titles of the specific variant
+         * @param kind Title variant
+         * @return Titles per book
+         */
+        AtomicReferenceArray<String[]> get(int kind) {
+            switch (kind) {
+                case TITLE_RU:
+                    return ruTitles;
+                case TITLE_RU_COMPLEX:
+                    return ruComplexTitles;
+                default:
+                    return csTitles;
+            }
+        }
+    }
 
     public Metadata() {
         this.mBookList = new ArrayList<>();
@@ -27,8 +74,44 @@ public class Metadata {
      * @param book Book to add
      */
     public void addBook(Book book) {
+        if (mFrozen) {
+            throw new IllegalStateException("Metadata is frozen");
+        }
         mBookList.add(book);
         mBookMap.put(book.getRuShortName().toLowerCase(), book);
+        mTitleCache = null;
+        mChapterTasks.set(null);
+    }
+
+    /**
+     * Sets source of chapters for books which were added without them (chapters are loaded on first access)
+     * @param provider Chapter provider (null to disable lazy loading)
+     */
+    public void setChapterProvider(ChapterProvider provider) {
+        if (mFrozen) {
+            throw new IllegalStateException("Metadata is frozen");
+        }
+        mChapterProvider = provider;
+        mChapterTasks.set(null);
+    }
+
+    /**
+     * Makes metadata read-only (no more books may be added), after that it may be shared between threads
+     */
+    public synchronized void freeze() {
+        if (!mFrozen) {
+            mBookList = Collections.unmodifiableList(mBookList);
+            mBookMap = Collections.unmodifiableMap(mBookMap);
+            mFrozen = true;
+        }
+    }
+
+    /**
+     * Checks whether metadata is read-only
+     * @return true if metadata is frozen
+     */
+    public boolean isFrozen() {
+        return mFrozen;
     }
 
     /**
@@ -39,6 +122,14 @@ public class Metadata {
         return mBookMap.keySet();
     }
 
+    /**
+     * Return number of books
+     * @return Book count
+     */
+    public int getBookCount() {
+        return mBookList.size();
+    }
+
     /**
      * Return size of the specific book
      * @param book Book index (1-based)
@@ -77,26 +168,57 @@ public class Metadata {
      */
     public int getChapterSize(int book, int chapter) {
         Book tempBook = mBookList.get(book - 1);
-        if (tempBook.getChapters() == null) { //Load chapters from database
-            throw new UnsupportedOperationException("Reading database");
-//            Uri uri = Uri.withAppendedPath(BibleProvider.Chapter.CONTENT_BOOK_URI, String.valueOf(tempBook.getId()));
-//            String[] proj = {BibleProvider.Chapter.ID, BibleProvider.Chapter.ORD, BibleProvider.Chapter.SIZE};
-//            List<Chapter> chapters = new ArrayList<Chapter>();
-//            Cursor cursor = mContext.getContentResolver().query(uri, proj, null, null, BibleProvider.Chapter.ORD);
-//            try {
-//                if (cursor.moveToFirst()) {
-//                    do {
-//                        int ord = cursor.getInt(cursor.getColumnIndex(BibleProvider.Chapter.ORD));
-//                        int size = cursor.getInt(cursor.getColumnIndex(BibleProvider.Chapter.SIZE));
-//                        chapters.add(new Chapter(ord, size));
-//                    } while (cursor.moveToNext());
-//                }
-//            } finally {
-//                cursor.close();
-//            }
-//            tempBook.setChapters(chapters);
+        List<Chapter> chapters = tempBook.getChapters();
+        if (chapters == null) { //Load chapters through provider
+            chapters = loadChapters(book, tempBook);
+        }
+        return chapters.get(chapter - 1).getSize();
+    }
+
+    /**
+     * Return chapters of the book which was added without them.
+     * Every book is loaded once: the first caller installs loading task with CAS and runs it,
+     * concurrent callers wait for the same task. Failed task is removed, so loading may be retried
+     * @param book     Book index (1-based)
+     * @param tempBook Book in question
+     * @return List of chapters (sorted)
+     */
+    private List<Chapter> loadChapters(int book, final Book tempBook) {
+        final ChapterProvider provider = mChapterProvider;
+        if (provider == null) {
+            throw new UnsupportedOperationException("Chapters of book " + tempBook.getRuShortName() + " are not loaded");
+        }
+        AtomicReferenceArray<FutureTask<List<Chapter>>> tasks = mChapterTasks.get();
+        while (tasks == null || tasks.length() != mBookList.size()) {
+            AtomicReferenceArray<FutureTask<List<Chapter>>> created = new AtomicReferenceArray<>(mBookList.size());
+            tasks = mChapterTasks.compareAndSet(tasks, created) ? created : mChapterTasks.get();
+        }
+        FutureTask<List<Chapter>> task = tasks.get(book - 1);
+        if (task == null) {
+            FutureTask<List<Chapter>> created = new FutureTask<>(new Callable<List<Chapter>>() {
+                @Override
+                public List<Chapter> call() throws Exception {
+                    List<Chapter> chapters = new ArrayList<>(provider.loadChapters(tempBook));
+                    Collections.sort(chapters);
+                    return Collections.unmodifiableList(chapters);
+                }
+            });
+            if (tasks.compareAndSet(book - 1, null, created)) {
+                created.run();
+                task = created;
+            } else {
+                task = tasks.get(book - 1);
+            }
+        }
+        try {
+            return task.get();
+        } catch (ExecutionException ex) {
+            tasks.compareAndSet(book - 1, task, null);
+            throw new IllegalStateException("Chapters of book " + tempBook.getRuShortName() + " can not be loaded", ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while loading chapters of book " + tempBook.getRuShortName(), ex);
         }
-        return tempBook.getChapters().get(chapter - 1).getSize();
     }
 
     /**
@@ -106,7 +228,7 @@ public class Metadata {
      * @return Tab title
      */
     public String constructRuTitle(int book, int chapter) {
-        return String.format("%s %d", mBookList.get(book - 1).getRuChapterName(), chapter);
+        return getTitle(TITLE_RU, book, chapter);
     }
 
     /**
@@ -116,7 +238,7 @@ public class Metadata {
      * @return Tab title
      */
     public String constructRuTitleComplex(int book, int chapter) {
-        return String.format("%s.%d", mBookList.get(book - 1).getRuShortName(), chapter);
+        return getTitle(TITLE_RU_COMPLEX, book, chapter);
     }
 
     /**
@@ -126,6 +248,46 @@ public class Metadata {
      * @return Chapter title
      */
     public String constructCsTitle(int book, int chapter) {
-        return String.format("%s %s", mBookList.get(book - 1).getCsChapterName(), CsNumber.generateCsNumber(chapter));
+        return getTitle(TITLE_CS, book, chapter);
+    }
+
+    /**
+     * Return title from cache (titles of the whole book are built on first request)
+     * @param kind    Title variant
+     * @param book    Book index (1-based)
+     * @param chapter Chapter index (1-based)
+     * @return Chapter title
+     */
+    private String getTitle(int kind, int book, int chapter) {
+        Book tempBook = mBookList.get(book - 1);
+        if (chapter < 1 || chapter > tempBook.getSize()) { //Not a real chapter, nothing to cache
+            return formatTitle(kind, tempBook, chapter);
+        }
+        TitleCache cache = mTitleCache;
+        if (cache == null || cache.ruTitles.length() != mBookList.size()) {
+            cache = new TitleCache(mBookList.size());
+            mTitleCache = cache;
+        }
+        AtomicReferenceArray<String[]> bookTitles = cache.get(kind);
+        String[] titles = bookTitles.get(book - 1);
+        if (titles == null) {
+            titles = new String[tempBook.getSize()];
+            for (int i = 0; i < titles.length; i++) {
+                titles[i] = formatTitle(kind, tempBook, i + 1);
+            }
+            bookTitles.set(book - 1, titles);
+        }
+        return titles[chapter - 1];
+    }
+
+    private static String formatTitle(int kind, Book book, int chapter) {
+        switch (kind) {
+            case TITLE_RU:
+                return String.format("%s %d", book.getRuChapterName(), chapter);
+            case TITLE_RU_COMPLEX:
+                return String.format("%s.%d", book.getRuShortName(), chapter);
+            default:
+                return String.format("%s %s", book.getCsChapterName(), CsNumber.generateCsNumber(chapter));
+        }
     }
 }
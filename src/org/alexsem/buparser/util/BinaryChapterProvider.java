@@ -0,0 +1,138 @@
+package org.alexsem.buparser.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import org.alexsem.buparser.model.Book;
+import org.alexsem.buparser.model.Chapter;
+import org.alexsem.buparser.model.ChapterProvider;
+import org.alexsem.buparser.model.Metadata;
+
+/**
+ * Class which provides chapters from binary file with separate section for every book.
+ * Only the section of the requested book is decoded, so unused books cost nothing.
+ * <pre>
+ * int magic ("BUCH"), int version, int bookCount,
+ * int[bookCount] section offsets (from the beginning of the file),
+ * per book section: unsigned short chapterCount, unsigned short[chapterCount] verse counts
+ * </pre>
+ * Buffer is only read with absolute methods, so one provider may be used by many threads
+ * @author Semeniuk A.D.
+ */
+public class BinaryChapterProvider implements ChapterProvider {
+
+    private static final int MAGIC = 0x42554348; //BUCH
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 12;
+
+    private final ByteBuffer data;
+    private final int bookCount;
+
+    /**
+     * Constructor
+     * @param data Buffer with file contents
+     * @throws IOException in case data is not in expected format
+     */
+    public BinaryChapterProvider(ByteBuffer data) throws IOException {
+        if (data.limit() < HEADER_SIZE || data.getInt(0) != MAGIC) {
+            throw new IOException("Not a chapter file");
+        }
+        if (data.getInt(4) != VERSION) {
+            throw new IOException("Unsupported chapter file version: " + data.getInt(4));
+        }
+        this.data = data;
+        this.bookCount = data.getInt(8);
+        if (bookCount < 0 || HEADER_SIZE + bookCount * 4L > data.limit()) {
+            throw new IOException("Chapter file is truncated");
+        }
+    }
+
+    /**
+     * Opens chapter file (file is memory-mapped)
+     * @param file File to open
+     * @return Created provider
+     * @throws IOException in case file can not be read
+     */
+    public static BinaryChapterProvider open(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return new BinaryChapterProvider(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Reads chapter file from stream (e.g. resource)
+     * @param input Stream to read from (stream is closed)
+     * @return Created provider
+     * @throws IOException in case stream can not be read
+     */
+    public static BinaryChapterProvider load(InputStream input) throws IOException {
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = input.read(buffer)) >= 0) {
+                output.write(buffer, 0, count);
+            }
+            return new BinaryChapterProvider(ByteBuffer.wrap(output.toByteArray()));
+        } finally {
+            input.close();
+        }
+    }
+
+    @Override
+    public List<Chapter> loadChapters(Book book) throws IOException {
+        int ord = book.getOrd();
+        if (ord < 1 || ord > bookCount) {
+            throw new IOException("Book " + ord + " is not present in chapter file");
+        }
+        int offset = data.getInt(HEADER_SIZE + (ord - 1) * 4);
+        if (offset < 0 || offset + 2 > data.limit()) {
+            throw new IOException("Chapter file is truncated");
+        }
+        int count = data.getShort(offset) & 0xFFFF;
+        if (offset + 2 + count * 2 > data.limit()) {
+            throw new IOException("Chapter file is truncated");
+        }
+        List<Chapter> result = new ArrayList<Chapter>(count);
+        for (int i = 0; i < count; i++) {
+            result.add(new Chapter(i + 1, data.getShort(offset + 2 + i * 2) & 0xFFFF));
+        }
+        return result;
+    }
+
+    /**
+     * Writes chapters of all books in binary format
+     * @param metadata Metadata with chapters
+     * @param output   Stream to write to (stream is not closed)
+     * @throws IOException in case writing fails
+     */
+    public static void write(Metadata metadata, OutputStream output) throws IOException {
+        int count = metadata.getBookCount();
+        DataOutputStream stream = new DataOutputStream(output);
+        stream.writeInt(MAGIC);
+        stream.writeInt(VERSION);
+        stream.writeInt(count);
+        int offset = HEADER_SIZE + count * 4;
+        for (int book = 1; book <= count; book++) {
+            stream.writeInt(offset);
+            offset += 2 + metadata.getBookSize(book) * 2;
+        }
+        for (int book = 1; book <= count; book++) {
+            int size = metadata.getBookSize(book);
+            stream.writeShort(size);
+            for (int chapter = 1; chapter <= size; chapter++) {
+                stream.writeShort(metadata.getChapterSize(book, chapter));
+            }
+        }
+        stream.flush();
+    }
+
+}
@@ -0,0 +1,226 @@
+package org.alexsem.buparser.util;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Class which keeps requests to the remote host polite.
+ * Request rate is limited by token bucket, number of simultaneous requests is adjusted
+ * by AIMD (additive increase while responses are healthy, multiplicative decrease on
+ * throttling, server errors, failures and rising latency). Retry-After is honored by pausing all requests.
+ * All methods are thread-safe
+ * @author Semeniuk A.D.
+ */
+public class FetchScheduler {
+
+    private static final double DECREASE_THROTTLED = 0.5;
+    private static final double DECREASE_LATENCY = 0.9;
+    private static final double LATENCY_TOLERANCE = 2.0;
+    private static final double LATENCY_FAST_WEIGHT = 0.3;
+    private static final double LATENCY_SLOW_WEIGHT = 0.05;
+    private static final long BACKOFF_MIN = 1000L * 1000000;
+    private static final long BACKOFF_MAX = 60000L * 1000000;
+    private static final long RETRY_AFTER_MAX = 600000L * 1000000;
+
+    private final double rate;
+    private final double burst;
+    private final int minConcurrency;
+    private final int maxConcurrency;
+
+    private double tokens;
+    private long refilled;
+    private double limit;
+    private int inFlight;
+    private long pausedUntil;
+    private long backoff = BACKOFF_MIN;
+    private long lastDecrease;
+    private double latencyFast;
+    private double latencySlow;
+
+    /**
+     * Creates scheduler
+     * @param rate               Maximum number of requests per second
+     * @param burst              Maximum number of requests which may be issued at once after idle period
+     * @param minConcurrency     Lower limit of simultaneous requests
+     * @param maxConcurrency     Upper limit of simultaneous requests
+     * @param initialConcurrency Starting limit of simultaneous requests
+     */
+    public FetchScheduler(double rate, int burst, int minConcurrency, int maxConcurrency, int initialConcurrency) {
+        if (rate <= 0 || burst < 1 || minConcurrency < 1 || maxConcurrency < minConcurrency) {
+            throw new IllegalArgumentException("Invalid scheduler limits");
+        }
+        this.rate = rate;
+        this.burst = burst;
+        this.minConcurrency = minConcurrency;
+        this.maxConcurrency = maxConcurrency;
+        this.limit = Math.max(minConcurrency, Math.min(maxConcurrency, initialConcurrency));
+        this.tokens = burst;
+        this.refilled = System.nanoTime();
+        this.pausedUntil = refilled;
+    }
+
+    //==========================================================================
+    /**
+     * Waits until next request may be issued (every call must be followed by release)
+     * @throws InterruptedException in case thread is interrupted while waiting
+     */
+    public synchronized void acquire() throws InterruptedException {
+        while (true) {
+            long now = System.nanoTime();
+            if (now - pausedUntil < 0) {
+                waitNanos(pausedUntil - now);
+                continue;
+            }
+            if (inFlight >= (int) limit) {
+                wait();
+                continue;
+            }
+            refill(now);
+            if (tokens < 1) {
+                waitNanos((long) ((1 - tokens) / rate * 1e9));
+                continue;
+            }
+            tokens -= 1;
+            inFlight++;
+            return;
+        }
+    }
+
+    /**
+     * Reports outcome of the request which was started after acquire
+     * @param status     HTTP status code (or -1 if request failed without response)
+     * @param latency    Request duration (in nanoseconds)
+     * @param retryAfter Value of Retry-After header (may be null)
+     */
+    public synchronized void release(int status, long latency, String retryAfter) {
+        inFlight--;
+        long now = System.nanoTime();
+        if (status == 200) {
+            backoff = BACKOFF_MIN;
+            if (updateLatency(latency)) {
+                decrease(now, DECREASE_LATENCY);
+            } else if (inFlight + 1 >= (int) limit) { //Increase only when the limit is actually reached
+                limit = Math.min(maxConcurrency, limit + 1 / limit);
+            }
+        } else if (isThrottled(status)) {
+            decrease(now, DECREASE_THROTTLED);
+            long delay = parseRetryAfter(retryAfter);
+            if (delay < 0) {
+                delay = backoff;
+                backoff = Math.min(BACKOFF_MAX, backoff * 2);
+            }
+            if (pausedUntil - (now + delay) < 0) {
+                pausedUntil = now + delay;
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     * Checks whether request with the specific status may be repeated
+     * @param status HTTP status code (or -1 if request failed without response)
+     * @return true for failures, throttling and server errors
+     */
+    public static boolean isRetryable(int status) {
+        return isThrottled(status);
+    }
+
+    private static boolean isThrottled(int status) {
+        return status < 0 || status == 429 || status >= 500;
+    }
+
+    //==========================================================================
+    /**
+     * Return current limit of simultaneous requests
+     * @return Concurrency limit
+     */
+    public synchronized int getConcurrencyLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * Return number of requests which are currently running
+     * @return Number of requests
+     */
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Return smoothed request latency
+     * @return Latency (in milliseconds)
+     */
+    public synchronized double getLatency() {
+        return latencyFast / 1e6;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("limit: %d, in flight: %d, latency: %.0f ms", (int) limit, inFlight, latencyFast / 1e6);
+    }
+
+    //==========================================================================
+    private void refill(long now) {
+        tokens = Math.min(burst, tokens + (now - refilled) / 1e9 * rate);
+        refilled = now;
+    }
+
+    private void waitNanos(long nanos) throws InterruptedException {
+        long millis = Math.max(1, nanos / 1000000);
+        wait(millis);
+    }
+
+    /**
+     * Updates latency averages
+     * @param latency Latest latency (in nanoseconds)
+     * @return true if latency is rising compared to long-term average
+     */
+    private boolean updateLatency(long latency) {
+        if (latencySlow == 0) {
+            latencyFast = latencySlow = latency;
+            return false;
+        }
+        latencyFast += (latency - latencyFast) * LATENCY_FAST_WEIGHT;
+        latencySlow += (latency - latencySlow) * LATENCY_SLOW_WEIGHT;
+        return latencyFast > latencySlow * LATENCY_TOLERANCE;
+    }
+
+    /**
+     * Decreases concurrency limit (at most once per smoothed latency, so one burst of failures counts once)
+     * @param now    Current time
+     * @param factor Decrease factor
+     */
+    private void decrease(long now, double factor) {
+        if (lastDecrease != 0 && now - lastDecrease < (long) latencyFast) {
+            return;
+        }
+        lastDecrease = now;
+        limit = Math.max(minConcurrency, limit * factor);
+    }
+
+    /**
+     * Parses Retry-After header (either delay in seconds or HTTP date)
+     * @param value Header value
+     * @return Delay (in nanoseconds) or -1 if value is missing or malformed
+     */
+    static long parseRetryAfter(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return -1;
+        }
+        value = value.trim();
+        if (value.matches("\\d+")) { //Delay in seconds (clamped before scaling, so that huge values do not overflow)
+            if (value.length() > 9) {
+                return RETRY_AFTER_MAX;
+            }
+            return Math.min(RETRY_AFTER_MAX, Long.parseLong(value) * 1000000000L);
+        }
+        try {
+            long millis = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli() - System.currentTimeMillis();
+            return Math.max(0, Math.min(RETRY_AFTER_MAX / 1000000L, millis)) * 1000000L;
+        } catch (DateTimeParseException ex) {
+            return -1;
+        }
+    }
+
+}
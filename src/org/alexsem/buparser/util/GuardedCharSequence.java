@@ -0,0 +1,122 @@
+package org.alexsem.buparser.util;
+
+/**
+ * Class which wraps text passed to regular expression and limits the work done on it.
+ * Every character access counts as one step; once the budget is spent, LimitExceededException
+ * is thrown, so pathological input fails fast instead of backtracking for minutes.
+ * Subsequences share the budget of the wrapper they were taken from.
+ * Instance must be used by one matcher (one thread) only
+ * @author Semeniuk A.D.
+ */
+public final class GuardedCharSequence implements CharSequence {
+
+    /**
+     * Exception which is thrown when input is too long or matching takes too many steps.
+     * It describes input rather than program state, so stack trace is not captured
+     */
+    public static class LimitExceededException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String input;
+        private final boolean lengthExceeded;
+
+        LimitExceededException(String message, String input, boolean lengthExceeded) {
+            super(message, null, false, false);
+            this.input = input;
+            this.lengthExceeded = lengthExceeded;
+        }
+
+        public String getInput() {
+            return input;
+        }
+
+        /**
+         * Checks whether input was rejected before matching because of its length
+         * @return true if length limit was exceeded, false if step budget was spent
+         */
+        public boolean isLengthExceeded() {
+            return lengthExceeded;
+        }
+    }
+
+    /**
+     * Steps which are left (shared by wrapper and its subsequences)
+     */
+    private static class Budget {
+
+        private final long limit;
+        private long remaining;
+
+        Budget(long limit) {
+            this.limit = limit;
+            this.remaining = limit;
+        }
+    }
+
+    private final CharSequence source;
+    private final int offset;
+    private final int length;
+    private final Budget budget;
+
+    private GuardedCharSequence(CharSequence source, int offset, int length, Budget budget) {
+        this.source = source;
+        this.offset = offset;
+        this.length = length;
+        this.budget = budget;
+    }
+
+    /**
+     * Wraps text
+     * @param input      Text to wrap
+     * @param maxLength  Maximum allowed length of the text
+     * @param stepBudget Maximum number of character accesses
+     * @return Wrapped text
+     * @throws LimitExceededException in case text is longer than allowed
+     */
+    public static GuardedCharSequence wrap(CharSequence input, int maxLength, long stepBudget) {
+        if (input.length() > maxLength) {
+            throw new LimitExceededException("Input is longer than " + maxLength + " characters", input.toString(), true);
+        }
+        return new GuardedCharSequence(input, 0, input.length(), new Budget(stepBudget));
+    }
+
+    /**
+     * Return number of steps which were spent so far
+     * @return Step count
+     */
+    public long getSteps() {
+        return budget.limit - budget.remaining;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (--budget.remaining < 0) {
+            budget.remaining = 0;
+            throw new LimitExceededException("Matching exceeded " + budget.limit + " steps", source.toString(), false);
+        }
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", length: " + length);
+        }
+        return source.charAt(offset + index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end > length || start > end) {
+            throw new IndexOutOfBoundsException("Range: " + start + "-" + end + ", length: " + length);
+        }
+        return new GuardedCharSequence(source, offset + start, end - start, budget);
+    }
+
+    @Override
+    public String toString() {
+        return source.subSequence(offset, offset + length).toString();
+    }
+
+}
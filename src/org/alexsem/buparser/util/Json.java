@@ -0,0 +1,252 @@
+package org.alexsem.buparser.util;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Class which reads and writes minimal JSON.
+ * Objects are parsed into LinkedHashMap, arrays into ArrayList, numbers into Double
+ * @author Semeniuk A.D.
+ */
+public abstract class Json {
+
+    private static final int MAX_DEPTH = 64; //Parser is recursive, deeper input would overflow the stack
+
+    /**
+     * Parses JSON text
+     * @param text Text to parse
+     * @return Parsed value (Map, List, String, Double, Boolean or null)
+     * @throws IllegalArgumentException in case text is not valid JSON or is nested deeper than 64 levels
+     */
+    public static Object parse(String text) {
+        Reader reader = new Reader(text);
+        reader.skipWhitespace();
+        Object result = reader.readValue();
+        reader.skipWhitespace();
+        if (reader.position < text.length()) {
+            throw reader.error("Unexpected trailing data");
+        }
+        return result;
+    }
+
+    /**
+     * Appends quoted and escaped string
+     * @param builder Builder to append to
+     * @param value   String value (null is written as null)
+     * @return The same builder
+     */
+    public static StringBuilder quote(StringBuilder builder, String value) {
+        if (value == null) {
+            return builder.append("null");
+        }
+        builder.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    builder.append("\\\"");
+                    break;
+                case '\\':
+                    builder.append("\\\\");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                case '\t':
+                    builder.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        builder.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        builder.append(c);
+                    }
+            }
+        }
+        return builder.append('"');
+    }
+
+    //==========================================================================
+    private static class Reader {
+
+        private final String text;
+        private int position;
+        private int depth;
+
+        Reader(String text) {
+            this.text = text;
+        }
+
+        IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at position " + position);
+        }
+
+        void skipWhitespace() {
+            while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+                position++;
+            }
+        }
+
+        char next() {
+            if (position >= text.length()) {
+                throw error("Unexpected end of data");
+            }
+            return text.charAt(position++);
+        }
+
+        void expect(String literal) {
+            if (!text.startsWith(literal, position)) {
+                throw error("Expected " + literal);
+            }
+            position += literal.length();
+        }
+
+        Object readValue() {
+            if (position >= text.length()) {
+                throw error("Unexpected end of data");
+            }
+            char c = text.charAt(position);
+            switch (c) {
+                case '{':
+                case '[':
+                    if (++depth > MAX_DEPTH) {
+                        throw error("Too deeply nested");
+                    }
+                    Object result = c == '{' ? readObject() : readArray();
+                    depth--;
+                    return result;
+                case '"':
+                    return readString();
+                case 't':
+                    expect("true");
+                    return Boolean.TRUE;
+                case 'f':
+                    expect("false");
+                    return Boolean.FALSE;
+                case 'n':
+                    expect("null");
+                    return null;
+                default:
+                    if (c == '-' || (c >= '0' && c <= '9')) {
+                        return readNumber();
+                    }
+                    throw error("Unexpected character '" + c + "'");
+            }
+        }
+
+        Map<String, Object> readObject() {
+            Map<String, Object> result = new LinkedHashMap<>();
+            position++;
+            skipWhitespace();
+            if (position < text.length() && text.charAt(position) == '}') {
+                position++;
+                return result;
+            }
+            while (true) {
+                skipWhitespace();
+                if (position >= text.length() || text.charAt(position) != '"') {
+                    throw error("Expected property name");
+                }
+                String name = readString();
+                skipWhitespace();
+                if (next() != ':') {
+                    throw error("Expected ':'");
+                }
+                skipWhitespace();
+                result.put(name, readValue());
+                skipWhitespace();
+                char c = next();
+                if (c == '}') {
+                    return result;
+                } else if (c != ',') {
+                    throw error("Expected ',' or '}'");
+                }
+            }
+        }
+
+        List<Object> readArray() {
+            List<Object> result = new ArrayList<>();
+            position++;
+            skipWhitespace();
+            if (position < text.length() && text.charAt(position) == ']') {
+                position++;
+                return result;
+            }
+            while (true) {
+                skipWhitespace();
+                result.add(readValue());
+                skipWhitespace();
+                char c = next();
+                if (c == ']') {
+                    return result;
+                } else if (c != ',') {
+                    throw error("Expected ',' or ']'");
+                }
+            }
+        }
+
+        String readString() {
+            position++;
+            StringBuilder builder = new StringBuilder();
+            while (true) {
+                char c = next();
+                if (c == '"') {
+                    return builder.toString();
+                } else if (c == '\\') {
+                    c = next();
+                    switch (c) {
+                        case 'b':
+                            builder.append('\b');
+                            break;
+                        case 'f':
+                            builder.append('\f');
+                            break;
+                        case 'n':
+                            builder.append('\n');
+                            break;
+                        case 'r':
+                            builder.append('\r');
+                            break;
+                        case 't':
+                            builder.append('\t');
+                            break;
+                        case 'u':
+                            if (position + 4 > text.length()) {
+                                throw error("Invalid unicode escape");
+                            }
+                            try {
+                                builder.append((char) Integer.parseInt(text.substring(position, position + 4), 16));
+                            } catch (NumberFormatException ex) {
+                                throw error("Invalid unicode escape");
+                            }
+                            position += 4;
+                            break;
+                        default:
+                            builder.append(c);
+                    }
+                } else {
+                    builder.append(c);
+                }
+            }
+        }
+
+        Double readNumber() {
+            int start = position;
+            while (position < text.length() && "+-0123456789.eE".indexOf(text.charAt(position)) >= 0) {
+                position++;
+            }
+            try {
+                return Double.valueOf(text.substring(start, position));
+            } catch (NumberFormatException ex) {
+                position = start;
+                throw error("Invalid number");
+            }
+        }
+    }
+
+}
@@ -6,8 +6,12 @@ import org.alexsem.buparser.model.Metadata;
 import org.alexsem.buparser.model.SearchCode;
 
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
 public abstract class LocationCalculator {
 
@@ -410,6 +414,203 @@ public abstract class LocationCalculator {
         return new LocationSet(input, transformCodesToLocations(codes), 0, -1f);
     }
 
+    /**
+     * Formats location set into canonical link (the shortest one which parses back into the same verses).
+     * Adjacent and overlapping ranges are merged, books and chapters are sorted,
+     * verses which do not exist are dropped. Examples: "Мф. 5:1-12", "Ин. 1, 3 - 5", "Деян. 1:1-8,12; Мф. 4:25 - 5:12", "Иак."
+     * @param metadata List of books with sizes and short names
+     * @param set      Location set
+     * @return Canonical link or null if set does not reference any verse
+     */
+    public static String formatLocationSet(Metadata metadata, LocationSet set) {
+        if (set == null) {
+            return null;
+        }
+        TreeMap<Integer, TreeMap<Integer, BitSet>> books = new TreeMap<Integer, TreeMap<Integer, BitSet>>();
+        if (set.isLimited()) {
+            if (set.getLocations() != null) {
+                for (Location location : set.getLocations()) {
+                    collectVerses(metadata, books, location.getBook(), location.getChapter(), location.getFilter());
+                }
+            }
+        } else {
+            collectVerses(metadata, books, set.getBook(), set.getChapter(), null);
+        }
+        StringBuilder result = new StringBuilder();
+        for (Map.Entry<Integer, TreeMap<Integer, BitSet>> entry : books.entrySet()) {
+            if (result.length() > 0) {
+                result.append("; ");
+            }
+            formatBook(metadata, result, entry.getKey(), entry.getValue());
+        }
+        return result.length() > 0 ? result.toString() : null;
+    }
+
+    /**
+     * Adds verses of one location to per-book chapter map
+     * @param metadata List of books with sizes and short names
+     * @param books    Map of books to fill
+     * @param book     Book index
+     * @param chapter  Chapter index
+     * @param filter   Set of verses (null for entire chapter)
+     */
+    private static void collectVerses(Metadata metadata, Map<Integer, TreeMap<Integer, BitSet>> books, int book, int chapter, Set<Integer> filter) {
+        if (book < 1 || book > metadata.getBookCount() || chapter < 1 || chapter > metadata.getBookSize(book)) { //Location out of bounds
+            return;
+        }
+        int size = metadata.getChapterSize(book, chapter);
+        TreeMap<Integer, BitSet> chapters = books.get(book);
+        if (chapters == null) {
+            chapters = new TreeMap<Integer, BitSet>();
+            books.put(book, chapters);
+        }
+        BitSet verses = chapters.get(chapter);
+        if (verses == null) {
+            verses = new BitSet(size + 1);
+            chapters.put(chapter, verses);
+        }
+        if (filter == null) { //Entire chapter
+            verses.set(1, size + 1);
+        } else {
+            for (int verse : filter) {
+                if (verse >= 1 && verse <= size) {
+                    verses.set(verse);
+                }
+            }
+        }
+    }
+
+    /**
+     * Appends canonical representation of one book
+     * @param metadata List of books with sizes and short names
+     * @param result   Builder to append to
+     * @param book     Book index
+     * @param chapters Verses of every referenced chapter
+     */
+    private static void formatBook(Metadata metadata, StringBuilder result, int book, TreeMap<Integer, BitSet> chapters) {
+        //--- Split into maximal runs of consecutive verses (runs may cross chapter borders) ---
+        List<int[]> runs = new ArrayList<int[]>(); //{chapter1, verse1, chapter2, verse2}
+        int[] run = null;
+        for (Map.Entry<Integer, BitSet> entry : chapters.entrySet()) {
+            int chapter = entry.getKey();
+            BitSet verses = entry.getValue();
+            for (int start = verses.nextSetBit(1); start >= 0; start = verses.nextSetBit(start)) {
+                int end = verses.nextClearBit(start) - 1;
+                if (run != null && start == 1 && run[2] == chapter - 1 && run[3] == metadata.getChapterSize(book, run[2])) { //Continues previous run
+                    run[2] = chapter;
+                    run[3] = end;
+                } else {
+                    run = new int[]{chapter, start, chapter, end};
+                    runs.add(run);
+                }
+                start = end + 1;
+            }
+        }
+        if (runs.isEmpty()) {
+            return;
+        }
+        result.append(metadata.getBookShortName(book)).append('.');
+        if (runs.size() == 1 && isChapterAligned(metadata, book, runs.get(0))
+                && runs.get(0)[0] == 1 && runs.get(0)[2] == metadata.getBookSize(book)) { //Entire book
+            return;
+        }
+        //--- Format runs: whole chapters, verses of one chapter or extended intervals ---
+        List<int[]> parts = new ArrayList<int[]>();
+        for (int[] item : runs) {
+            parts.addAll(splitRun(metadata, book, item));
+        }
+        int verseChapter = -1; //Chapter whose verse list is being appended to
+        for (int[] item : parts) {
+            if (!isChapterAligned(metadata, book, item) && item[0] == item[2]) { //Verses within one chapter
+                if (item[0] == verseChapter) {
+                    result.append(',');
+                } else {
+                    result.append(result.charAt(result.length() - 1) == '.' ? " " : ", ");
+                    result.append(item[0]).append(':');
+                    verseChapter = item[0];
+                }
+                result.append(item[1]);
+                if (item[3] > item[1]) {
+                    result.append('-').append(item[3]);
+                }
+                continue;
+            }
+            result.append(result.charAt(result.length() - 1) == '.' ? " " : ", ");
+            verseChapter = -1;
+            if (isChapterAligned(metadata, book, item)) { //Whole chapters
+                result.append(item[0]);
+                if (item[2] > item[0]) {
+                    result.append(" - ").append(item[2]);
+                }
+            } else { //Extended interval
+                result.append(item[0]).append(':').append(item[1]).append(" - ").append(item[2]).append(':').append(item[3]);
+            }
+        }
+    }
+
+    /**
+     * Splits run which crosses chapter borders into partial first chapter, whole chapters and partial last chapter
+     * if that is shorter than extended interval (e.g. "4, 5:1-12" instead of "4:1 - 5:12")
+     * @param metadata List of books with sizes and short names
+     * @param book     Book index
+     * @param run      Verse run ({chapter1, verse1, chapter2, verse2})
+     * @return List of runs which cover the same verses
+     */
+    private static List<int[]> splitRun(Metadata metadata, int book, int[] run) {
+        if (run[0] == run[2] || isChapterAligned(metadata, book, run)) {
+            return Collections.singletonList(run);
+        }
+        List<int[]> parts = new ArrayList<int[]>();
+        int first = run[0];
+        int last = run[2];
+        if (run[1] > 1) { //Partial first chapter
+            parts.add(new int[]{first, run[1], first, metadata.getChapterSize(book, first)});
+            first++;
+        }
+        boolean partialLast = run[3] < metadata.getChapterSize(book, last);
+        if (partialLast) {
+            last--;
+        }
+        if (first <= last) {
+            parts.add(new int[]{first, 1, last, metadata.getChapterSize(book, last)});
+        }
+        if (partialLast) {
+            parts.add(new int[]{run[2], 1, run[2], run[3]});
+        }
+        int length = -2; //Separators are not needed before the first part
+        for (int[] part : parts) {
+            length += 2 + formatRun(metadata, book, part).length();
+        }
+        return length < formatRun(metadata, book, run).length() ? parts : Collections.singletonList(run);
+    }
+
+    /**
+     * Formats single run (used to compare lengths of alternative representations)
+     * @param metadata List of books with sizes and short names
+     * @param book     Book index
+     * @param run      Verse run ({chapter1, verse1, chapter2, verse2})
+     * @return Run representation ("4", "4 - 6", "4:1-12" or "4:1 - 5:12")
+     */
+    private static String formatRun(Metadata metadata, int book, int[] run) {
+        if (isChapterAligned(metadata, book, run)) {
+            return run[2] > run[0] ? run[0] + " - " + run[2] : String.valueOf(run[0]);
+        } else if (run[0] == run[2]) {
+            return run[3] > run[1] ? run[0] + ":" + run[1] + "-" + run[3] : run[0] + ":" + run[1];
+        }
+        return run[0] + ":" + run[1] + " - " + run[2] + ":" + run[3];
+    }
+
+    /**
+     * Checks whether verse run starts and ends on chapter borders
+     * @param metadata List of books with sizes and short names
+     * @param book     Book index
+     * @param run      Verse run ({chapter1, verse1, chapter2, verse2})
+     * @return true if run consists of whole chapters
+     */
+    private static boolean isChapterAligned(Metadata metadata, int book, int[] run) {
+        return run[1] == 1 && run[3] == metadata.getChapterSize(book, run[2]);
+    }
+
     /**
      * Constructs the part of general RegExp pattern which defines the book name options
      * @param metadata List of books with sizes and short names
@@ -0,0 +1,61 @@
+package org.alexsem.buparser.util;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+
+/**
+ * Exception which is thrown by public parsing methods for failed ParseResult.
+ * It describes input rather than program state, so stack trace is not captured
+ * @author Semeniuk A.D.
+ */
+public class ParseException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    private final ParseResult.Error error;
+    private final String input;
+    private transient ParseResult<?> result; //Position is taken from result on request
+    private int position = -1;
+
+    /**
+     * Constructor
+     * @param result Failed result
+     */
+    public ParseException(ParseResult<?> result) {
+        super(result.getMessage(), null, false, false);
+        this.error = result.getError();
+        this.input = result.getInput();
+        this.result = result;
+    }
+
+    public ParseResult.Error getError() {
+        return error;
+    }
+
+    public String getInput() {
+        return input;
+    }
+
+    /**
+     * Return position within input where problem was detected
+     * @return Position or -1 if unknown
+     */
+    public synchronized int getPosition() {
+        if (result != null) {
+            position = result.getPosition();
+            result = null;
+        }
+        return position;
+    }
+
+    /**
+     * Finds position before serialization, since result is not serialized
+     * @param output Stream to write to
+     * @throws IOException in case of write error
+     */
+    private void writeObject(ObjectOutputStream output) throws IOException {
+        getPosition();
+        output.defaultWriteObject();
+    }
+
+}
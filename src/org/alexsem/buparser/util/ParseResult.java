@@ -0,0 +1,174 @@
+package org.alexsem.buparser.util;
+
+/**
+ * Class which holds outcome of parsing: either value or error code with the input which caused it.
+ * Used instead of exceptions on the parsing path, where malformed input is an ordinary outcome;
+ * ParseException is created only when result leaves public API
+ * @param <T> Type of the value
+ * @author Semeniuk A.D.
+ */
+public final class ParseResult<T> {
+
+    /**
+     * Error codes
+     */
+    public enum Error {
+
+        INVALID_READINGS("Invalid readings"),
+        ILLEGAL_COMMENT("Illegal comment"),
+        CANNOT_SPLIT_LINE("Cannot split line"),
+        NO_READINGS_DATA("No readings data found"),
+        NBSP_PART_MISMATCH("NBSP part does not match"),
+        NBSP_COUNT_MISMATCH("Not every reading found (nbsp)"),
+        PERICOPE_COUNT_MISMATCH("Not every reading found (pericope)"),
+        ZERO_READINGS("Zero readings"),
+        UNRESOLVABLE_LINK("Unresolvable link"),
+        INPUT_TOO_LONG("Input is too long"),
+        INPUT_TOO_COMPLEX("Input is too complex");
+
+        private final String description;
+
+        Error(String description) {
+            this.description = description;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+    }
+
+    /**
+     * Computes position of the problem on request, when finding it costs more than the failure itself
+     */
+    public interface Locator {
+
+        /**
+         * Finds position within input where problem was detected
+         * @return Position (-1 if unknown)
+         */
+        int locate();
+    }
+
+    private final T value;
+    private final Error error;
+    private final String input;
+    private Locator locator; //Reset once position is found
+    private int position;
+
+    private ParseResult(T value, Error error, String input, int position, Locator locator) {
+        this.value = value;
+        this.error = error;
+        this.input = input;
+        this.position = position;
+        this.locator = locator;
+    }
+
+    /**
+     * Creates successful result
+     * @param value Parsed value
+     * @return Created result
+     */
+    public static <T> ParseResult<T> success(T value) {
+        return new ParseResult<>(value, null, null, -1, null);
+    }
+
+    /**
+     * Creates failed result
+     * @param error    Error code
+     * @param input    Input which could not be parsed (may be null)
+     * @param position Position within input where problem was detected (-1 if unknown)
+     * @return Created result
+     */
+    public static <T> ParseResult<T> failure(Error error, String input, int position) {
+        return new ParseResult<>(null, error, input, position, null);
+    }
+
+    /**
+     * Creates failed result which finds position only when it is requested
+     * @param error   Error code
+     * @param input   Input which could not be parsed (may be null)
+     * @param locator Computes position within input where problem was detected
+     * @return Created result
+     */
+    public static <T> ParseResult<T> failure(Error error, String input, Locator locator) {
+        return new ParseResult<>(null, error, input, -1, locator);
+    }
+
+    public boolean isSuccess() {
+        return error == null;
+    }
+
+    /**
+     * Return parsed value
+     * @return Value
+     * @throws IllegalStateException in case result is failed
+     */
+    public T getValue() {
+        if (error != null) {
+            throw new IllegalStateException("Result is failed: " + getMessage());
+        }
+        return value;
+    }
+
+    public Error getError() {
+        return error;
+    }
+
+    public String getInput() {
+        return input;
+    }
+
+    /**
+     * Return position within input where problem was detected (computed on first request, if locator is set)
+     * @return Position or -1 if unknown
+     */
+    public synchronized int getPosition() {
+        if (locator != null) {
+            position = locator.locate();
+            locator = null;
+        }
+        return position;
+    }
+
+    /**
+     * Return error message (built on request only)
+     * @return Message or null if result is successful
+     */
+    public String getMessage() {
+        if (error == null) {
+            return null;
+        }
+        return input == null ? error.getDescription() : error.getDescription() + ": " + input;
+    }
+
+    /**
+     * Return the same failure typed for another value (used to pass failure to the caller)
+     * @return Failed result
+     * @throws IllegalStateException in case result is successful
+     */
+    @SuppressWarnings("unchecked")
+    public <U> ParseResult<U> propagate() {
+        if (error == null) {
+            throw new IllegalStateException("Result is successful");
+        }
+        return (ParseResult<U>) this;
+    }
+
+    /**
+     * Return value or throws exception (used at public API boundary)
+     * @return Value
+     * @throws ParseException in case result is failed
+     */
+    public T orThrow() throws ParseException {
+        if (error != null) {
+            throw new ParseException(this);
+        }
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return error == null ? "Success: " + value : "Failure: " + getMessage() + (getPosition() >= 0 ? " (at " + getPosition() + ")" : "");
+    }
+
+}
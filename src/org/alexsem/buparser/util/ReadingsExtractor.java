@@ -0,0 +1,138 @@
+package org.alexsem.buparser.util;
+
+import java.io.IOException;
+import java.io.Reader;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+/**
+ * Class which extracts readings block from the daily readings document (kld.xml)
+ * and reports its contents as a stream of comment, link and separator events
+ * @author Semeniuk A.D.
+ */
+public abstract class ReadingsExtractor {
+
+    /**
+     * Receiver of the readings events
+     */
+    public interface Handler {
+
+        /**
+         * Called for plain text found between links (separators are already removed)
+         * @param text Text fragment
+         */
+        void onText(String text);
+
+        /**
+         * Called for every link
+         * @param href   Link address
+         * @param text   Link text
+         * @param simple true if link text does not contain any nested markup
+         */
+        void onLink(String href, String text, boolean simple);
+
+        /**
+         * Called for every non-breaking space (reading separator)
+         */
+        void onSeparator();
+    }
+
+    private static final String[][] HTML_ENTITIES = {
+        {"nbsp", "\u00A0"}, {"ndash", "-"}, {"mdash", "—"}, {"laquo", "«"}, {"raquo", "»"}
+    };
+
+    /**
+     * Parses readings document and reports contents of the readings block (div class="read")
+     * @param input   Reader to read document from
+     * @param handler Handler to report events to
+     * @return true if readings block was found, false otherwise
+     * @throws XmlPullParserException in case document is not well-formed
+     * @throws IOException            in case reading fails
+     */
+    public static boolean extract(Reader input, Handler handler) throws XmlPullParserException, IOException {
+        XmlPullParser xpp = XmlPullParserFactory.newInstance().newPullParser();
+        xpp.setInput(input);
+        for (String[] entity : HTML_ENTITIES) {
+            xpp.defineEntityReplacementText(entity[0], entity[1]);
+        }
+        int depth = -1;
+        while (xpp.getEventType() != XmlPullParser.END_DOCUMENT) {
+            int event = xpp.getEventType();
+            if (depth < 0) { //Looking for readings block
+                if (event == XmlPullParser.START_TAG && xpp.getName().equalsIgnoreCase("div") && "read".equals(xpp.getAttributeValue(null, "class"))) {
+                    depth = xpp.getDepth();
+                }
+            } else if (event == XmlPullParser.START_TAG) {
+                if (xpp.getName().equalsIgnoreCase("a")) {
+                    readLink(xpp, handler);
+                } else if (xpp.getName().equalsIgnoreCase("div")) { //Nested blocks are not part of readings
+                    skipElement(xpp);
+                }
+            } else if (event == XmlPullParser.TEXT) {
+                reportText(xpp.getText(), handler);
+            } else if (event == XmlPullParser.END_TAG && xpp.getDepth() == depth) {
+                return true;
+            }
+            xpp.next();
+        }
+        return depth >= 0;
+    }
+
+    private static void readLink(XmlPullParser xpp, Handler handler) throws XmlPullParserException, IOException {
+        String href = xpp.getAttributeValue(null, "href");
+        int depth = xpp.getDepth();
+        boolean simple = true;
+        StringBuilder text = new StringBuilder();
+        while (xpp.next() != XmlPullParser.END_TAG || xpp.getDepth() != depth) {
+            if (xpp.getEventType() == XmlPullParser.END_DOCUMENT) {
+                break;
+            } else if (xpp.getEventType() == XmlPullParser.TEXT) {
+                text.append(xpp.getText());
+            } else if (xpp.getEventType() == XmlPullParser.START_TAG) {
+                simple = false;
+            }
+        }
+        handler.onLink(href == null ? "" : href, normalize(text.toString()), simple);
+    }
+
+    private static void skipElement(XmlPullParser xpp) throws XmlPullParserException, IOException {
+        int depth = xpp.getDepth();
+        while (xpp.next() != XmlPullParser.END_TAG || xpp.getDepth() != depth) {
+            if (xpp.getEventType() == XmlPullParser.END_DOCUMENT) {
+                return;
+            }
+        }
+    }
+
+    private static void reportText(String text, Handler handler) {
+        text = normalize(text);
+        int start = 0;
+        int index;
+        while ((index = text.indexOf('\u00A0', start)) >= 0) {
+            if (index > start) {
+                handler.onText(text.substring(start, index));
+            }
+            handler.onSeparator();
+            start = index + 1;
+        }
+        if (start < text.length()) {
+            handler.onText(text.substring(start));
+        }
+    }
+
+    /**
+     * Brings text to the form which is used by the rest of the parser
+     * (dashes are unified, stress marks are written as character references)
+     * @param text Text to normalize
+     * @return Normalized text
+     */
+    private static String normalize(String text) {
+        text = text.replace('–', '-');
+        if (text.indexOf('\u0301') >= 0) {
+            text = text.replace("\u0301", "&#769;");
+        }
+        return text;
+    }
+
+}
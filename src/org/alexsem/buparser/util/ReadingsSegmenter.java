@@ -0,0 +1,157 @@
+package org.alexsem.buparser.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Class which splits readings block into segments in one pass.
+ * Segments are trimmed views of the source (no copying), pericope marks
+ * and Roman chapter numbers are counted while splitting
+ * @author Semeniuk A.D.
+ */
+public abstract class ReadingsSegmenter {
+
+    private static final String MARK_PERICOPE = "зач.";
+    private static final String MARK_PERICOPE_QUOTE = "\"), ";
+    private static final String ROMAN_DIGITS = "IVXLCDM";
+
+    /**
+     * One segment of the readings block
+     */
+    public static final class Segment implements CharSequence {
+
+        private final CharSequence source;
+        private final int start;
+        private final int end;
+        private final int pericopes;
+        private final boolean roman;
+        private final boolean blank;
+
+        private Segment(CharSequence source, int start, int end, int pericopes, boolean roman, boolean blank) {
+            this.source = source;
+            this.start = start;
+            this.end = end;
+            this.pericopes = pericopes;
+            this.roman = roman;
+            this.blank = blank;
+        }
+
+        /**
+         * Return number of pericope marks ("зач." and "\"), ") found in segment
+         * @return Number of marks
+         */
+        public int getPericopes() {
+            return pericopes;
+        }
+
+        /**
+         * Checks whether segment contains Roman chapter number (the same as "([IVXLCDM]+), " pattern)
+         * @return true if Roman number is present, false otherwise
+         */
+        public boolean hasRoman() {
+            return roman;
+        }
+
+        public boolean isEmpty() {
+            return start == end;
+        }
+
+        @Override
+        public int length() {
+            return end - start;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return source.charAt(start + index);
+        }
+
+        @Override
+        public CharSequence subSequence(int from, int to) {
+            return source.subSequence(start + from, start + to);
+        }
+
+        @Override
+        public String toString() {
+            return source.subSequence(start, end).toString();
+        }
+    }
+
+    /**
+     * Splits text into trimmed segments (trailing empty segments are dropped exactly like String.split does)
+     * @param text      Text to split
+     * @param separator Segment separator
+     * @return List of segments
+     */
+    public static List<Segment> split(CharSequence text, String separator) {
+        List<Segment> result = new ArrayList<>();
+        int length = text.length();
+        int segmentStart = 0;
+        int pericopes = 0;
+        int firstRoman = -1;
+        for (int i = 0; i <= length; i++) {
+            if (i == length || (separator != null && matchesAt(text, i, separator))) {
+                result.add(createSegment(text, segmentStart, i, pericopes, firstRoman));
+                if (i == length) {
+                    break;
+                }
+                i += separator.length() - 1;
+                segmentStart = i + 1;
+                pericopes = 0;
+                firstRoman = -1;
+                continue;
+            }
+            char c = text.charAt(i);
+            if (c == 'з' && matchesAt(text, i, MARK_PERICOPE)) {
+                pericopes++;
+            } else if (c == '"' && matchesAt(text, i, MARK_PERICOPE_QUOTE)) {
+                pericopes++;
+            } else if (c == ',' && firstRoman < 0 && i > segmentStart && ROMAN_DIGITS.indexOf(text.charAt(i - 1)) >= 0
+                    && i + 1 < length && text.charAt(i + 1) == ' ') {
+                firstRoman = i;
+            }
+        }
+        if (result.size() > 1) {
+            while (!result.isEmpty() && result.get(result.size() - 1).blank) {
+                result.remove(result.size() - 1);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Scans text as one segment
+     * @param text Text to scan
+     * @return Trimmed segment with counters
+     */
+    public static Segment scan(CharSequence text) {
+        List<Segment> segments = split(text, null);
+        return segments.get(0);
+    }
+
+    private static Segment createSegment(CharSequence text, int start, int end, int pericopes, int firstRoman) {
+        boolean blank = start == end;
+        while (start < end && text.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && text.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        //Trailing space of ", " must remain inside the trimmed segment
+        boolean roman = firstRoman >= 0 && firstRoman + 1 < end;
+        return new Segment(text, start, end, pericopes, roman, blank);
+    }
+
+    private static boolean matchesAt(CharSequence text, int index, String literal) {
+        if (index + literal.length() > text.length()) {
+            return false;
+        }
+        for (int i = 0; i < literal.length(); i++) {
+            if (text.charAt(index + i) != literal.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
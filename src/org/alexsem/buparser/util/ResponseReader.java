@@ -0,0 +1,190 @@
+package org.alexsem.buparser.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Class which reads HTTP response bodies as text independently of the platform default charset.
+ * Compressed bodies (gzip, deflate) are decoded on the fly, charset is taken from Content-Type header,
+ * then from XML prolog, UTF-8 is used otherwise. Line breaks are removed (the same as joining lines).
+ * Byte and char buffers are reused per thread
+ * @author Semeniuk A.D.
+ */
+public abstract class ResponseReader {
+
+    public static final String ACCEPT_ENCODING = "gzip, deflate";
+
+    private static final Pattern PATTERN_CONTENT_CHARSET = Pattern.compile("charset\\s*=\\s*[\"']?([^\\s;\"']+)", Pattern.CASE_INSENSITIVE);
+    private static final Pattern PATTERN_PROLOG_ENCODING = Pattern.compile("^<\\?xml[^>]*?encoding\\s*=\\s*[\"']([^\"']+)[\"']");
+    private static final int PROLOG_LENGTH = 256;
+    private static final int INITIAL_SIZE = 64 * 1024;
+    private static final int MAX_RETAINED_SIZE = 4 * 1024 * 1024;
+
+    private static final ThreadLocal<Buffers> BUFFERS = new ThreadLocal<Buffers>() {
+        @Override
+        protected Buffers initialValue() {
+            return new Buffers();
+        }
+    };
+
+    /**
+     * Per-thread reusable buffers
+     */
+    private static class Buffers {
+
+        byte[] bytes = new byte[INITIAL_SIZE];
+        char[] chars = new char[INITIAL_SIZE];
+    }
+
+    /**
+     * Prepares request (asks server for compressed response)
+     * @param connection Connection which is not yet connected
+     */
+    public static void prepare(HttpURLConnection connection) {
+        connection.setRequestProperty("Accept-Encoding", ACCEPT_ENCODING);
+    }
+
+    /**
+     * Reads response body as text
+     * @param connection Connection with successful response
+     * @return Response body without line breaks
+     * @throws IOException in case body can not be read or decoded
+     */
+    public static String read(HttpURLConnection connection) throws IOException {
+        Buffers buffers = BUFFERS.get();
+        int length;
+        try (InputStream input = openBody(connection)) {
+            length = readFully(input, buffers);
+        }
+        Charset charset = detectCharset(connection.getContentType(), buffers.bytes, length);
+        try {
+            return decode(charset, buffers, length);
+        } finally {
+            if (buffers.bytes.length > MAX_RETAINED_SIZE || buffers.chars.length > MAX_RETAINED_SIZE) { //Do not keep huge buffers forever
+                BUFFERS.remove();
+            }
+        }
+    }
+
+    private static InputStream openBody(HttpURLConnection connection) throws IOException {
+        InputStream input = connection.getInputStream();
+        String encoding = connection.getContentEncoding();
+        if (encoding != null) {
+            encoding = encoding.trim();
+            if (encoding.equalsIgnoreCase("gzip") || encoding.equalsIgnoreCase("x-gzip")) {
+                return new GZIPInputStream(input);
+            } else if (encoding.equalsIgnoreCase("deflate")) {
+                return new InflaterInputStream(input);
+            }
+        }
+        return input;
+    }
+
+    private static int readFully(InputStream input, Buffers buffers) throws IOException {
+        int length = 0;
+        int count;
+        while ((count = input.read(buffers.bytes, length, buffers.bytes.length - length)) >= 0) {
+            length += count;
+            if (length == buffers.bytes.length) {
+                byte[] larger = new byte[buffers.bytes.length * 2];
+                System.arraycopy(buffers.bytes, 0, larger, 0, length);
+                buffers.bytes = larger;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Determines response charset
+     * @param contentType Value of Content-Type header (may be null)
+     * @param data        Response body
+     * @param length      Body length
+     * @return Detected charset (UTF-8 if nothing is declared)
+     */
+    static Charset detectCharset(String contentType, byte[] data, int length) {
+        if (contentType != null) {
+            Matcher matcher = PATTERN_CONTENT_CHARSET.matcher(contentType);
+            if (matcher.find()) {
+                Charset charset = forName(matcher.group(1));
+                if (charset != null) {
+                    return charset;
+                }
+            }
+        }
+        if (length >= 3 && (data[0] & 0xFF) == 0xEF && (data[1] & 0xFF) == 0xBB && (data[2] & 0xFF) == 0xBF) { //BOM
+            return StandardCharsets.UTF_8;
+        }
+        //Prolog is always ASCII-compatible in encodings which are used by the site
+        String prolog = new String(data, 0, Math.min(length, PROLOG_LENGTH), StandardCharsets.ISO_8859_1);
+        Matcher matcher = PATTERN_PROLOG_ENCODING.matcher(prolog);
+        if (matcher.find()) {
+            Charset charset = forName(matcher.group(1));
+            if (charset != null) {
+                return charset;
+            }
+        }
+        return StandardCharsets.UTF_8;
+    }
+
+    private static Charset forName(String name) {
+        try {
+            return Charset.forName(name);
+        } catch (IllegalCharsetNameException | UnsupportedCharsetException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Decodes body into reusable char buffer and drops line breaks (and UTF-8 BOM)
+     * @param charset Charset to use
+     * @param buffers Buffers which hold the body
+     * @param length  Body length
+     * @return Decoded text
+     * @throws CharacterCodingException in case decoding fails
+     */
+    private static String decode(Charset charset, Buffers buffers, int length) throws CharacterCodingException {
+        CharsetDecoder decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        int required = (int) Math.ceil(length * (double) decoder.maxCharsPerByte()) + 1;
+        if (buffers.chars.length < required) {
+            buffers.chars = new char[required];
+        }
+        ByteBuffer in = ByteBuffer.wrap(buffers.bytes, 0, length);
+        CharBuffer out = CharBuffer.wrap(buffers.chars);
+        CoderResult result = decoder.decode(in, out, true);
+        if (!result.isUnderflow()) {
+            result.throwException();
+        }
+        result = decoder.flush(out);
+        if (!result.isUnderflow()) {
+            result.throwException();
+        }
+        char[] chars = buffers.chars;
+        int size = 0;
+        int start = out.position() > 0 && chars[0] == '\uFEFF' ? 1 : 0;
+        for (int i = start; i < out.position(); i++) {
+            char c = chars[i];
+            if (c != '\n' && c != '\r') {
+                chars[size++] = c;
+            }
+        }
+        return new String(chars, 0, size);
+    }
+
+}
@@ -0,0 +1,113 @@
+package org.alexsem.buparser.util;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * Class which represents one named rewrite rule of the link normalizer.
+ * Rule is skipped without running its pattern if cheap literal precheck fails.
+ * Hits and time are accumulated only when RuleProfiler is enabled
+ * @author Semeniuk A.D.
+ */
+public abstract class RewriteRule {
+
+    private final String name;
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder nanos = new LongAdder();
+
+    /**
+     * Constructor
+     * @param name Rule name (used in reports)
+     */
+    protected RewriteRule(String name) {
+        this.name = name;
+        RuleProfiler.register(this);
+    }
+
+    /**
+     * Creates rule which replaces all occurrences of literal string
+     * @param name        Rule name
+     * @param target      String to replace
+     * @param replacement Replacement string
+     * @return Created rule
+     */
+    public static RewriteRule literal(String name, final String target, final String replacement) {
+        return new RewriteRule(name) {
+            @Override
+            protected String rewrite(String input) {
+                return input.contains(target) ? input.replace(target, replacement) : input;
+            }
+        };
+    }
+
+    /**
+     * Creates rule which replaces all matches of regular expression
+     * @param name        Rule name
+     * @param regex       Regular expression
+     * @param replacement Replacement string (may contain group references)
+     * @param precheck    Literal which must be present in input for the rule to match (null to always run)
+     * @return Created rule
+     */
+    public static RewriteRule regex(String name, String regex, final String replacement, final String precheck) {
+        final Pattern pattern = Pattern.compile(regex);
+        return new RewriteRule(name) {
+            @Override
+            protected String rewrite(String input) {
+                if (precheck != null && !input.contains(precheck)) {
+                    return input;
+                }
+                return pattern.matcher(input).replaceAll(replacement);
+            }
+        };
+    }
+
+    /**
+     * Performs actual rewriting
+     * @param input Input string
+     * @return Rewritten string (same instance if rule does not match)
+     */
+    protected abstract String rewrite(String input);
+
+    /**
+     * Applies rule to the input
+     * @param input Input string
+     * @return Rewritten string
+     */
+    public final String apply(String input) {
+        if (!RuleProfiler.isEnabled()) {
+            return rewrite(input);
+        }
+        long start = System.nanoTime();
+        String result = rewrite(input);
+        nanos.add(System.nanoTime() - start);
+        calls.increment();
+        if (!result.equals(input)) {
+            hits.increment();
+        }
+        return result;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getCalls() {
+        return calls.sum();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getNanos() {
+        return nanos.sum();
+    }
+
+    void reset() {
+        calls.reset();
+        hits.reset();
+        nanos.reset();
+    }
+
+}
@@ -0,0 +1,62 @@
+package org.alexsem.buparser.util;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Class which controls opt-in instrumentation of rewrite rules.
+ * Instrumentation is enabled by -Dbuparser.profile=true or programmatically
+ * @author Semeniuk A.D.
+ */
+public abstract class RuleProfiler {
+
+    private static final List<RewriteRule> RULES = new CopyOnWriteArrayList<>();
+    private static volatile boolean enabled = Boolean.getBoolean("buparser.profile");
+
+    static void register(RewriteRule rule) {
+        RULES.add(rule);
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        RuleProfiler.enabled = enabled;
+    }
+
+    /**
+     * Resets counters of all rules
+     */
+    public static void reset() {
+        for (RewriteRule rule : RULES) {
+            rule.reset();
+        }
+    }
+
+    /**
+     * Prints report sorted by accumulated time (rules which never matched are marked as dead)
+     * @param out Stream to print report to
+     */
+    public static void report(PrintStream out) {
+        List<RewriteRule> rules = new ArrayList<>(RULES);
+        Collections.sort(rules, new Comparator<RewriteRule>() {
+            @Override
+            public int compare(RewriteRule r1, RewriteRule r2) {
+                return Long.compare(r2.getNanos(), r1.getNanos());
+            }
+        });
+        out.println(String.format("%-32s %10s %10s %12s %10s", "Rule", "Calls", "Hits", "Time, us", "Avg, ns"));
+        for (RewriteRule rule : rules) {
+            long calls = rule.getCalls();
+            out.println(String.format("%-32s %10d %10d %12d %10d%s", rule.getName(), calls, rule.getHits(),
+                    rule.getNanos() / 1000, calls == 0 ? 0 : rule.getNanos() / calls,
+                    calls > 0 && rule.getHits() == 0 ? "  (dead)" : ""));
+        }
+    }
+
+}
@@ -0,0 +1,374 @@
+package org.alexsem.buparser.util;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Class which runs three-stage pipeline: fetch (I/O-bound, many threads),
+ * parse (CPU-bound, one thread per core) and ordered write (calling thread).
+ * Stages are connected by bounded queues, number of items in flight is limited as well,
+ * so slow stage blocks the faster ones instead of letting memory grow
+ * @param <S> Source item type (e.g. day)
+ * @param <F> Fetched data type
+ * @param <P> Parsed data type
+ * @author Semeniuk A.D.
+ */
+public class StagedPipeline<S, F, P> {
+
+    /**
+     * One processing stage
+     * @param <I> Input type
+     * @param <O> Output type
+     */
+    public interface Stage<I, O> {
+
+        /**
+         * Processes one item (called concurrently from several threads)
+         * @param input Input item
+         * @return Output item
+         * @throws Exception in case item can not be processed
+         */
+        O process(I input) throws Exception;
+    }
+
+    /**
+     * Final stage which receives items in source order (called from one thread)
+     * @param <S> Source item type
+     * @param <P> Parsed data type
+     */
+    public interface Sink<S, P> {
+
+        /**
+         * Receives one processed item
+         * @param source Source item
+         * @param result Parsed data (null if some stage failed)
+         * @param error  Error thrown by fetch or parse stage (null if item was processed),
+         *               errors which are not exceptions are wrapped into ExecutionException
+         * @throws Exception in case item can not be written (pipeline is aborted)
+         */
+        void accept(S source, P result, Exception error) throws Exception;
+    }
+
+    private final Stage<S, F> fetchStage;
+    private final Stage<F, P> parseStage;
+    private final int fetchThreads;
+    private final int parseThreads;
+    private final int capacity;
+
+    private final QueueStats parseStats = new QueueStats("parse");
+    private final QueueStats writeStats = new QueueStats("write");
+    private final QueueStats reorderStats = new QueueStats("reorder");
+    private final AtomicLong fetchNanos = new AtomicLong();
+    private final AtomicLong parseNanos = new AtomicLong();
+    private long writeNanos;
+    private long[] latencies = new long[0];
+    private int completed;
+
+    private volatile BlockingQueue<Item<S, F, P>> parseQueue;
+    private volatile BlockingQueue<Item<S, F, P>> writeQueue;
+    private volatile int reorderDepth;
+
+    /**
+     * Creates pipeline
+     * @param fetchStage   Fetch stage
+     * @param parseStage   Parse stage
+     * @param fetchThreads Number of fetch threads
+     * @param parseThreads Number of parse threads
+     * @param capacity     Capacity of every inter-stage queue
+     */
+    public StagedPipeline(Stage<S, F> fetchStage, Stage<F, P> parseStage, int fetchThreads, int parseThreads, int capacity) {
+        if (fetchThreads <= 0 || parseThreads <= 0 || capacity <= 0) {
+            throw new IllegalArgumentException("Thread counts and capacity must be positive");
+        }
+        this.fetchStage = fetchStage;
+        this.parseStage = parseStage;
+        this.fetchThreads = fetchThreads;
+        this.parseThreads = parseThreads;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Creates pipeline with one parse thread per available processor
+     * @param fetchStage   Fetch stage
+     * @param parseStage   Parse stage
+     * @param fetchThreads Number of fetch threads
+     * @param capacity     Capacity of every inter-stage queue
+     */
+    public StagedPipeline(Stage<S, F> fetchStage, Stage<F, P> parseStage, int fetchThreads, int capacity) {
+        this(fetchStage, parseStage, fetchThreads, Runtime.getRuntime().availableProcessors(), capacity);
+    }
+
+    //==========================================================================
+    /**
+     * Runs all source items through the pipeline (blocks until everything is written)
+     * @param sources Source items
+     * @param sink    Sink which receives items in source order (runs in the calling thread)
+     * @throws Exception in case sink fails or pipeline is interrupted
+     */
+    public void run(final List<S> sources, Sink<S, P> sink) throws Exception {
+        final BlockingQueue<Item<S, F, P>> parseQueue = new ArrayBlockingQueue<>(capacity);
+        final BlockingQueue<Item<S, F, P>> writeQueue = new ArrayBlockingQueue<>(capacity);
+        this.parseQueue = parseQueue;
+        this.writeQueue = writeQueue;
+        //Items which are fetched but not yet written (includes the ones waiting for reordering)
+        final Semaphore window = new Semaphore(2 * capacity + fetchThreads + parseThreads);
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger activeFetchers = new AtomicInteger(fetchThreads);
+        final AtomicInteger activeParsers = new AtomicInteger(parseThreads);
+        latencies = new long[sources.size()];
+        completed = 0;
+
+        ExecutorService fetchers = Executors.newFixedThreadPool(fetchThreads, new NamedThreadFactory("buparser-pipeline-fetch"));
+        ExecutorService parsers = Executors.newFixedThreadPool(parseThreads, new NamedThreadFactory("buparser-pipeline-parse"));
+        try {
+            for (int i = 0; i < fetchThreads; i++) {
+                fetchers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            while (true) {
+                                window.acquire();
+                                int index = next.getAndIncrement();
+                                if (index >= sources.size()) {
+                                    window.release();
+                                    break;
+                                }
+                                Item<S, F, P> item = new Item<>(index, sources.get(index));
+                                long start = System.nanoTime();
+                                item.started = start;
+                                try {
+                                    item.fetched = fetchStage.process(item.source);
+                                } catch (Throwable ex) { //Worker must survive, otherwise run never ends
+                                    item.error = toException(ex);
+                                }
+                                fetchNanos.addAndGet(System.nanoTime() - start);
+                                parseQueue.put(item);
+                            }
+                            if (activeFetchers.decrementAndGet() == 0) {
+                                for (int j = 0; j < parseThreads; j++) {
+                                    parseQueue.put(Item.<S, F, P>poison());
+                                }
+                            }
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                });
+            }
+            for (int i = 0; i < parseThreads; i++) {
+                parsers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            while (true) {
+                                parseStats.sample(parseQueue.size());
+                                Item<S, F, P> item = parseQueue.take();
+                                if (item.index < 0) {
+                                    if (activeParsers.decrementAndGet() == 0) {
+                                        writeQueue.put(item);
+                                    }
+                                    break;
+                                }
+                                if (item.error == null) {
+                                    long start = System.nanoTime();
+                                    try {
+                                        item.result = parseStage.process(item.fetched);
+                                    } catch (Throwable ex) { //E.g. StackOverflowError of regular expression
+                                        item.error = toException(ex);
+                                    }
+                                    parseNanos.addAndGet(System.nanoTime() - start);
+                                }
+                                item.fetched = null;
+                                writeQueue.put(item);
+                            }
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                });
+            }
+
+            //--- Write items in source order ---
+            Map<Integer, Item<S, F, P>> pending = new HashMap<>();
+            int expected = 0;
+            while (true) {
+                writeStats.sample(writeQueue.size());
+                Item<S, F, P> item = writeQueue.take();
+                if (item.index < 0) {
+                    break;
+                }
+                pending.put(item.index, item);
+                reorderStats.sample(pending.size() - 1);
+                while ((item = pending.remove(expected)) != null) {
+                    long start = System.nanoTime();
+                    sink.accept(item.source, item.result, item.error);
+                    long finish = System.nanoTime();
+                    writeNanos += finish - start;
+                    latencies[completed++] = finish - item.started;
+                    window.release();
+                    expected++;
+                }
+                reorderDepth = pending.size();
+            }
+        } finally {
+            fetchers.shutdownNow();
+            parsers.shutdownNow();
+            fetchers.awaitTermination(1, TimeUnit.MINUTES);
+            parsers.awaitTermination(1, TimeUnit.MINUTES);
+        }
+    }
+
+    /**
+     * Converts anything thrown by stage into exception which is passed to sink
+     * @param thrown Thrown object
+     * @return The same object if it is exception, ExecutionException wrapping it otherwise
+     */
+    private static Exception toException(Throwable thrown) {
+        return thrown instanceof Exception ? (Exception) thrown : new ExecutionException("Stage failed: " + thrown, thrown);
+    }
+
+    //==========================================================================
+    /**
+     * Return current number of fetched items waiting for parsing
+     * @return Queue depth
+     */
+    public int getParseQueueDepth() {
+        BlockingQueue<?> queue = parseQueue;
+        return queue == null ? 0 : queue.size();
+    }
+
+    /**
+     * Return current number of parsed items waiting for writing
+     * @return Queue depth
+     */
+    public int getWriteQueueDepth() {
+        BlockingQueue<?> queue = writeQueue;
+        return queue == null ? 0 : queue.size();
+    }
+
+    /**
+     * Return current number of parsed items waiting for the preceding ones to be written
+     * @return Reorder buffer depth
+     */
+    public int getReorderDepth() {
+        return reorderDepth;
+    }
+
+    /**
+     * Return number of items which were written during the last run
+     * @return Number of items
+     */
+    public int getCompletedCount() {
+        return completed;
+    }
+
+    /**
+     * Return latency percentile of the items written during the last run
+     * (time between start of fetching and end of writing)
+     * @param percentile Percentile (0-100)
+     * @return Latency (in nanoseconds) or 0 if nothing was written
+     */
+    public long getLatencyPercentile(double percentile) {
+        if (completed == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(latencies, completed);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100 * completed) - 1;
+        return sorted[Math.max(0, Math.min(completed - 1, index))];
+    }
+
+    /**
+     * Prints per-stage statistics: busy time and queue depths (average and maximum)
+     * @param out Stream to print report to
+     */
+    public void report(PrintStream out) {
+        out.println(String.format("%-8s %8s %12s", "Stage", "Threads", "Busy, ms"));
+        out.println(String.format("%-8s %8d %12d", "fetch", fetchThreads, fetchNanos.get() / 1000000));
+        out.println(String.format("%-8s %8d %12d", "parse", parseThreads, parseNanos.get() / 1000000));
+        out.println(String.format("%-8s %8d %12d", "write", 1, writeNanos / 1000000));
+        out.println(String.format("%-8s %8s %8s %8s", "Queue", "Capacity", "Avg", "Max"));
+        for (QueueStats stats : new QueueStats[]{parseStats, writeStats, reorderStats}) {
+            out.println(String.format("%-8s %8d %8.1f %8d", stats.name, capacity, stats.getAverage(), stats.max.get()));
+        }
+    }
+
+    //==========================================================================
+    private static class Item<S, F, P> {
+
+        final int index;
+        final S source;
+        long started;
+        F fetched;
+        P result;
+        Exception error;
+
+        Item(int index, S source) {
+            this.index = index;
+            this.source = source;
+        }
+
+        static <S, F, P> Item<S, F, P> poison() {
+            return new Item<>(-1, null);
+        }
+    }
+
+    /**
+     * Queue depth which is sampled every time consumer takes next item
+     */
+    private static class QueueStats {
+
+        final String name;
+        final AtomicLong sum = new AtomicLong();
+        final AtomicLong samples = new AtomicLong();
+        final AtomicInteger max = new AtomicInteger();
+
+        QueueStats(String name) {
+            this.name = name;
+        }
+
+        void sample(int depth) {
+            sum.addAndGet(depth);
+            samples.incrementAndGet();
+            int current;
+            while (depth > (current = max.get()) && !max.compareAndSet(current, depth)) {
+            }
+        }
+
+        double getAverage() {
+            long count = samples.get();
+            return count == 0 ? 0 : (double) sum.get() / count;
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+
+        private final String name;
+        private final AtomicInteger counter = new AtomicInteger();
+
+        NamedThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+}
@@ -0,0 +1,105 @@
+package org.alexsem.buparser.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Class which normalizes Russian and Church Slavonic text for search.
+ * Stress marks (both U+0301 and "&amp;#769;" entity, the same as in links), titlos and other
+ * combining marks are removed, superscript letters are written inline, Cyrillic is case-folded,
+ * Church Slavonic letters are folded into their Russian counterparts (ѣ to е, і to и, ѡ to о etc.),
+ * ё is folded into е and final ъ is dropped, so that "Христо&amp;#769;съ" and "Христос" give the same word
+ * @author Semeniuk A.D.
+ */
+public abstract class TextNormalizer {
+
+    private static final String STRESS_ENTITY = "&#769;";
+    private static final String FOLD_FROM = "ёѣіїѵѷѡѻꙍѽѿꙋѹѳѕꙗѧѩєѥꙑ";
+    private static final String[] FOLD_TO = {"е", "е", "и", "и", "и", "и", "о", "о", "о", "о", "от", "у", "у", "ф", "з", "я", "я", "я", "е", "е", "ы"};
+    /**
+     * Base letters of combining (superscript) letters U+2DE0..U+2DFF
+     */
+    private static final String[] SUPERSCRIPT = {"б", "в", "г", "д", "ж", "з", "к", "л", "м", "н", "о", "п", "р", "с", "т", "х",
+        "ц", "ч", "ш", "щ", "ф", "ст", "а", "е", "дж", "у", "е", "ю", "я", "я", "у", "ю"};
+
+    /**
+     * Normalizes text (result contains lower-case letters, digits and spaces only)
+     * @param text Text to normalize
+     * @return Normalized text
+     */
+    public static String normalize(String text) {
+        if (text.contains(STRESS_ENTITY)) {
+            text = text.replace(STRESS_ENTITY, "");
+        }
+        StringBuilder builder = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = Character.toLowerCase(text.charAt(i));
+            if (c >= '\u2DE0' && c <= '\u2DFF') { //Superscript letter
+                builder.append(SUPERSCRIPT[c - '\u2DE0']);
+                continue;
+            }
+            if (isMark(c)) {
+                continue;
+            }
+            int fold = FOLD_FROM.indexOf(c);
+            if (fold >= 0) {
+                builder.append(FOLD_TO[fold]);
+            } else if (c == 'ѯ') {
+                builder.append("кс");
+            } else if (c == 'ѱ') {
+                builder.append("пс");
+            } else if (Character.isLetterOrDigit(c)) {
+                builder.append(c);
+            } else if (builder.length() > 0 && builder.charAt(builder.length() - 1) != ' ') {
+                dropFinalHardSign(builder);
+                builder.append(' ');
+            }
+        }
+        int length = builder.length();
+        if (length > 0 && builder.charAt(length - 1) == ' ') {
+            builder.setLength(length - 1);
+        }
+        dropFinalHardSign(builder);
+        return builder.toString();
+    }
+
+    private static void dropFinalHardSign(StringBuilder builder) {
+        int length = builder.length();
+        if (length > 1 && builder.charAt(length - 1) == 'ъ' && builder.charAt(length - 2) != ' ') {
+            builder.setLength(length - 1);
+        }
+    }
+
+    /**
+     * Splits text into normalized words
+     * @param text Text to split
+     * @return List of words (in order of appearance)
+     */
+    public static List<String> tokenize(String text) {
+        List<String> result = new ArrayList<String>();
+        String normalized = normalize(text);
+        int start = 0;
+        while (start < normalized.length()) {
+            int end = normalized.indexOf(' ', start);
+            if (end < 0) {
+                end = normalized.length();
+            }
+            result.add(normalized.substring(start, end));
+            start = end + 1;
+        }
+        return result;
+    }
+
+    /**
+     * Checks whether character is combining mark (stress, titlo, superscript letters etc.)
+     * @param c Character in question
+     * @return true if character should be dropped
+     */
+    private static boolean isMark(char c) {
+        return (c >= '\u0300' && c <= '\u036F') //Combining diacritical marks
+                || (c >= '\u0483' && c <= '\u0489') //Cyrillic titlo and other combining marks
+                || (c >= '\uA66F' && c <= '\uA67D') //Cyrillic extended-B combining marks
+                || c == '\u00AD'; //Soft hyphen
+    }
+
+}
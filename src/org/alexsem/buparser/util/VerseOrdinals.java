@@ -0,0 +1,229 @@
+package org.alexsem.buparser.util;
+
+import java.util.Arrays;
+import org.alexsem.buparser.model.Location;
+import org.alexsem.buparser.model.LocationSet;
+import org.alexsem.buparser.model.Metadata;
+
+/**
+ * Class which maps (book, chapter, verse) coordinates to global verse ordinals and back.
+ * Ordinals are 0-based and follow the canonical order of books and chapters
+ * @author Semeniuk A.D.
+ */
+public class VerseOrdinals {
+
+    /**
+     * Index of the first chapter of every book within global chapter list (1-based books, extra element at the end)
+     */
+    private final int[] bookChapterStart;
+    /**
+     * Ordinal of the first verse of every global chapter (extra element at the end)
+     */
+    private final int[] chapterVerseStart;
+
+    /**
+     * Constructor
+     * @param metadata Metadata with chapter sizes loaded
+     */
+    public VerseOrdinals(Metadata metadata) {
+        int bookCount = metadata.getBookCount();
+        bookChapterStart = new int[bookCount + 2];
+        int chapterCount = 0;
+        for (int book = 1; book <= bookCount; book++) {
+            bookChapterStart[book] = chapterCount;
+            chapterCount += metadata.getBookSize(book);
+        }
+        bookChapterStart[bookCount + 1] = chapterCount;
+        chapterVerseStart = new int[chapterCount + 1];
+        int verseCount = 0;
+        for (int book = 1; book <= bookCount; book++) {
+            int bookSize = metadata.getBookSize(book);
+            for (int chapter = 1; chapter <= bookSize; chapter++) {
+                chapterVerseStart[bookChapterStart[book] + chapter - 1] = verseCount;
+                verseCount += metadata.getChapterSize(book, chapter);
+            }
+        }
+        chapterVerseStart[chapterCount] = verseCount;
+    }
+
+    /**
+     * Return total number of verses
+     * @return Verse count
+     */
+    public int getVerseCount() {
+        return chapterVerseStart[chapterVerseStart.length - 1];
+    }
+
+    /**
+     * Return total number of chapters
+     * @return Chapter count
+     */
+    public int getChapterCount() {
+        return chapterVerseStart.length - 1;
+    }
+
+    /**
+     * Return number of books
+     * @return Book count
+     */
+    public int getBookCount() {
+        return bookChapterStart.length - 2;
+    }
+
+    /**
+     * Return global index of the specific chapter
+     * @param book    Book index (1-based)
+     * @param chapter Chapter index (1-based)
+     * @return Global chapter index (0-based) or -1 if chapter does not exist
+     */
+    public int getChapterIndex(int book, int chapter) {
+        if (book < 1 || book > getBookCount() || chapter < 1 || chapter > getBookSize(book)) {
+            return -1;
+        }
+        return bookChapterStart[book] + chapter - 1;
+    }
+
+    /**
+     * Return number of chapters in the specific book
+     * @param book Book index (1-based)
+     * @return Chapter count
+     */
+    public int getBookSize(int book) {
+        return bookChapterStart[book + 1] - bookChapterStart[book];
+    }
+
+    /**
+     * Return number of verses in the specific chapter
+     * @param book    Book index (1-based)
+     * @param chapter Chapter index (1-based)
+     * @return Verse count
+     */
+    public int getChapterSize(int book, int chapter) {
+        int index = bookChapterStart[book] + chapter - 1;
+        return chapterVerseStart[index + 1] - chapterVerseStart[index];
+    }
+
+    /**
+     * Return ordinal of the specific verse
+     * @param book    Book index (1-based)
+     * @param chapter Chapter index (1-based)
+     * @param verse   Verse index (1-based)
+     * @return Verse ordinal or -1 if verse does not exist
+     */
+    public int getOrdinal(int book, int chapter, int verse) {
+        int index = getChapterIndex(book, chapter);
+        if (index < 0 || verse < 1 || verse > chapterVerseStart[index + 1] - chapterVerseStart[index]) {
+            return -1;
+        }
+        return chapterVerseStart[index] + verse - 1;
+    }
+
+    /**
+     * Return ordinal of the first verse of the specific chapter
+     * @param book    Book index (1-based)
+     * @param chapter Chapter index (1-based)
+     * @return Verse ordinal
+     */
+    public int getChapterStart(int book, int chapter) {
+        return chapterVerseStart[bookChapterStart[book] + chapter - 1];
+    }
+
+    /**
+     * Return book of the specific verse
+     * @param ordinal Verse ordinal
+     * @return Book index (1-based)
+     */
+    public int getBook(int ordinal) {
+        int chapterIndex = findChapterIndex(ordinal);
+        int position = Arrays.binarySearch(bookChapterStart, 1, bookChapterStart.length - 1, chapterIndex);
+        if (position < 0) {
+            return -position - 2;
+        }
+        while (position + 1 < bookChapterStart.length - 1 && bookChapterStart[position + 1] == chapterIndex) { //Skip empty books
+            position++;
+        }
+        return position;
+    }
+
+    /**
+     * Return chapter of the specific verse
+     * @param ordinal Verse ordinal
+     * @return Chapter index (1-based)
+     */
+    public int getChapter(int ordinal) {
+        return findChapterIndex(ordinal) - bookChapterStart[getBook(ordinal)] + 1;
+    }
+
+    /**
+     * Return verse number of the specific verse
+     * @param ordinal Verse ordinal
+     * @return Verse index (1-based)
+     */
+    public int getVerse(int ordinal) {
+        return ordinal - chapterVerseStart[findChapterIndex(ordinal)] + 1;
+    }
+
+    /**
+     * Return ordinals of all verses referenced by location set
+     * @param set Location set (limited)
+     * @return Sorted array of unique verse ordinals
+     */
+    public int[] toOrdinals(LocationSet set) {
+        if (set == null || set.getLocations() == null) {
+            return new int[0];
+        }
+        int count = 0;
+        for (Location location : set.getLocations()) {
+            if (getChapterIndex(location.getBook(), location.getChapter()) < 0) {
+                continue;
+            }
+            count += location.getFilter() == null ? getChapterSize(location.getBook(), location.getChapter()) : location.getFilter().size();
+        }
+        int[] result = new int[count];
+        int size = 0;
+        for (Location location : set.getLocations()) {
+            int book = location.getBook();
+            int chapter = location.getChapter();
+            if (getChapterIndex(book, chapter) < 0) {
+                continue;
+            }
+            if (location.getFilter() == null) {
+                int start = getChapterStart(book, chapter);
+                int chapterSize = getChapterSize(book, chapter);
+                for (int i = 0; i < chapterSize; i++) {
+                    result[size++] = start + i;
+                }
+            } else {
+                for (int verse : location.getFilter()) {
+                    int ordinal = getOrdinal(book, chapter, verse);
+                    if (ordinal >= 0) {
+                        result[size++] = ordinal;
+                    }
+                }
+            }
+        }
+        Arrays.sort(result, 0, size);
+        int unique = 0;
+        for (int i = 0; i < size; i++) {
+            if (unique == 0 || result[unique - 1] != result[i]) {
+                result[unique++] = result[i];
+            }
+        }
+        return unique == result.length ? result : Arrays.copyOf(result, unique);
+    }
+
+    private int findChapterIndex(int ordinal) {
+        if (ordinal < 0 || ordinal >= getVerseCount()) {
+            throw new IndexOutOfBoundsException("Verse ordinal out of bounds: " + ordinal);
+        }
+        int position = Arrays.binarySearch(chapterVerseStart, ordinal);
+        if (position < 0) {
+            return -position - 2;
+        }
+        while (position + 1 < chapterVerseStart.length && chapterVerseStart[position + 1] == ordinal) { //Skip empty chapters
+            position++;
+        }
+        return position;
+    }
+
+}
@@ -0,0 +1,421 @@
+package org.alexsem.buparser.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import org.alexsem.buparser.model.Location;
+import org.alexsem.buparser.model.LocationSet;
+
+/**
+ * Class which holds immutable set of verses as sorted disjoint ranges of verse ordinals (see VerseOrdinals).
+ * Set operations work on ranges, so they take time proportional to the number of ranges, not verses.
+ * Operations on disjoint sets do not allocate anything
+ * @author Semeniuk A.D.
+ */
+public final class VerseRangeSet {
+
+    public static final VerseRangeSet EMPTY = new VerseRangeSet(new int[0]);
+
+    /**
+     * Range bounds: start (inclusive) and end (exclusive) of every range, ranges are sorted, disjoint and not adjacent
+     */
+    private final int[] bounds;
+
+    private VerseRangeSet(int[] bounds) {
+        this.bounds = bounds;
+    }
+
+    /**
+     * Creates set which consists of one range
+     * @param first First verse ordinal
+     * @param last  Last verse ordinal (inclusive)
+     * @return Created set
+     */
+    public static VerseRangeSet range(int first, int last) {
+        if (first < 0 || last < first) {
+            throw new IllegalArgumentException("Invalid range: " + first + "-" + last);
+        }
+        return new VerseRangeSet(new int[]{first, last + 1});
+    }
+
+    /**
+     * Creates set of verses referenced by location set (whole chapters are added as single ranges)
+     * @param ordinals Verse ordinals
+     * @param set      Location set (limited)
+     * @return Created set
+     */
+    public static VerseRangeSet of(VerseOrdinals ordinals, LocationSet set) {
+        if (set == null || set.getLocations() == null || set.getLocations().isEmpty()) {
+            return EMPTY;
+        }
+        Builder builder = new Builder(set.getLocations().size());
+        for (Location location : set.getLocations()) {
+            int book = location.getBook();
+            int chapter = location.getChapter();
+            if (ordinals.getChapterIndex(book, chapter) < 0) {
+                continue;
+            }
+            int start = ordinals.getChapterStart(book, chapter);
+            int size = ordinals.getChapterSize(book, chapter);
+            HashSet<Integer> filter = location.getFilter();
+            if (filter == null) {
+                builder.add(start, start + size);
+            } else {
+                int[] verses = new int[filter.size()];
+                int count = 0;
+                for (int verse : filter) {
+                    if (verse >= 1 && verse <= size) {
+                        verses[count++] = verse;
+                    }
+                }
+                Arrays.sort(verses, 0, count);
+                for (int i = 0; i < count; i++) {
+                    int j = i;
+                    while (j + 1 < count && verses[j + 1] <= verses[j] + 1) {
+                        j++;
+                    }
+                    builder.add(start + verses[i] - 1, start + verses[j]);
+                    i = j;
+                }
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Creates set from sorted array of unique verse ordinals
+     * @param ordinals Sorted array of unique ordinals (e.g. result of VerseOrdinals.toOrdinals)
+     * @return Created set
+     */
+    public static VerseRangeSet ofOrdinals(int[] ordinals) {
+        Builder builder = new Builder(4);
+        for (int i = 0; i < ordinals.length; i++) {
+            int j = i;
+            while (j + 1 < ordinals.length && ordinals[j + 1] == ordinals[j] + 1) {
+                j++;
+            }
+            builder.add(ordinals[i], ordinals[j] + 1);
+            i = j;
+        }
+        return builder.build();
+    }
+
+    /**
+     * Creates set from array of ranges (ranges may be unsorted and may overlap)
+     * @param bounds Array of ranges: start and end (inclusive) of every range
+     * @param from   Index of the first element to use
+     * @param to     Index after the last element to use
+     * @return Created set
+     */
+    public static VerseRangeSet ofRanges(int[] bounds, int from, int to) {
+        Builder builder = new Builder((to - from) / 2);
+        for (int i = from; i + 1 < to; i += 2) {
+            builder.add(bounds[i], bounds[i + 1] + 1);
+        }
+        return builder.build();
+    }
+
+    //==========================================================================
+    /**
+     * Return number of ranges
+     * @return Range count
+     */
+    public int getRangeCount() {
+        return bounds.length / 2;
+    }
+
+    /**
+     * Return first ordinal of the specific range
+     * @param index Range index
+     * @return Verse ordinal
+     */
+    public int getRangeStart(int index) {
+        return bounds[index * 2];
+    }
+
+    /**
+     * Return last ordinal of the specific range (inclusive)
+     * @param index Range index
+     * @return Verse ordinal
+     */
+    public int getRangeEnd(int index) {
+        return bounds[index * 2 + 1] - 1;
+    }
+
+    /**
+     * Return number of verses in set
+     * @return Verse count
+     */
+    public int size() {
+        int size = 0;
+        for (int i = 0; i < bounds.length; i += 2) {
+            size += bounds[i + 1] - bounds[i];
+        }
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return bounds.length == 0;
+    }
+
+    /**
+     * Checks whether verse belongs to set
+     * @param ordinal Verse ordinal
+     * @return true if verse is in set
+     */
+    public boolean contains(int ordinal) {
+        int position = Arrays.binarySearch(bounds, ordinal);
+        //Found start bound or insertion point is within [start, end) pair
+        return position >= 0 ? (position & 1) == 0 : ((-position - 1) & 1) == 1;
+    }
+
+    /**
+     * Checks whether all verses of another set belong to this set
+     * @param other Another set
+     * @return true if other set is subset of this one
+     */
+    public boolean contains(VerseRangeSet other) {
+        int[] a = bounds;
+        int[] b = other.bounds;
+        int i = 0;
+        for (int j = 0; j < b.length; j += 2) {
+            while (i < a.length && a[i + 1] <= b[j]) {
+                i += 2;
+            }
+            if (i >= a.length || a[i] > b[j] || a[i + 1] < b[j + 1]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether sets have common verses
+     * @param other Another set
+     * @return true if sets overlap
+     */
+    public boolean overlaps(VerseRangeSet other) {
+        int[] a = bounds;
+        int[] b = other.bounds;
+        if (a.length == 0 || b.length == 0 || a[a.length - 1] <= b[0] || b[b.length - 1] <= a[0]) { //Quick check
+            return false;
+        }
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i + 1] <= b[j]) {
+                i += 2;
+            } else if (b[j + 1] <= a[i]) {
+                j += 2;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Return set of verses which belong to either set
+     * @param other Another set
+     * @return Union of sets
+     */
+    public VerseRangeSet union(VerseRangeSet other) {
+        if (other.bounds.length == 0 || this == other) {
+            return this;
+        } else if (bounds.length == 0) {
+            return other;
+        }
+        int[] a = bounds;
+        int[] b = other.bounds;
+        Builder builder = new Builder((a.length + b.length) / 2);
+        int i = 0;
+        int j = 0;
+        while (i < a.length || j < b.length) {
+            if (j >= b.length || (i < a.length && a[i] <= b[j])) {
+                builder.add(a[i], a[i + 1]);
+                i += 2;
+            } else {
+                builder.add(b[j], b[j + 1]);
+                j += 2;
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Return set of verses which belong to both sets
+     * @param other Another set
+     * @return Intersection of sets
+     */
+    public VerseRangeSet intersect(VerseRangeSet other) {
+        if (!overlaps(other)) {
+            return EMPTY;
+        }
+        int[] a = bounds;
+        int[] b = other.bounds;
+        Builder builder = new Builder(Math.min(a.length, b.length) / 2);
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length) {
+            int start = Math.max(a[i], b[j]);
+            int end = Math.min(a[i + 1], b[j + 1]);
+            if (start < end) {
+                builder.add(start, end);
+            }
+            if (a[i + 1] < b[j + 1]) {
+                i += 2;
+            } else {
+                j += 2;
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Return set of verses which belong to this set but not to another one
+     * @param other Another set
+     * @return Difference of sets
+     */
+    public VerseRangeSet difference(VerseRangeSet other) {
+        if (!overlaps(other)) {
+            return this;
+        }
+        int[] a = bounds;
+        int[] b = other.bounds;
+        Builder builder = new Builder(a.length / 2 + b.length / 2);
+        int j = 0;
+        for (int i = 0; i < a.length; i += 2) {
+            int start = a[i];
+            int end = a[i + 1];
+            while (j < b.length && b[j + 1] <= start) {
+                j += 2;
+            }
+            int k = j;
+            while (k < b.length && b[k] < end) {
+                if (b[k] > start) {
+                    builder.add(start, b[k]);
+                }
+                start = Math.max(start, b[k + 1]);
+                k += 2;
+            }
+            if (start < end) {
+                builder.add(start, end);
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Converts set into location set (one location per chapter, whole chapters are not filtered)
+     * @param ordinals Verse ordinals
+     * @param name     Location set name
+     * @return Location set
+     */
+    public LocationSet toLocationSet(VerseOrdinals ordinals, String name) {
+        List<Location> locations = new ArrayList<Location>();
+        Location location = null;
+        for (int i = 0; i < bounds.length; i += 2) {
+            int ordinal = bounds[i];
+            while (ordinal < bounds[i + 1]) {
+                int book = ordinals.getBook(ordinal);
+                int chapter = ordinals.getChapter(ordinal);
+                int chapterStart = ordinals.getChapterStart(book, chapter);
+                int chapterEnd = chapterStart + ordinals.getChapterSize(book, chapter);
+                int end = Math.min(chapterEnd, bounds[i + 1]);
+                if (location == null || location.getBook() != book || location.getChapter() != chapter) {
+                    location = new Location(book, chapter, null);
+                    locations.add(location);
+                }
+                if (ordinal > chapterStart || end < chapterEnd || location.getFilter() != null) {
+                    for (int verse = ordinal - chapterStart + 1; verse <= end - chapterStart; verse++) {
+                        location.appendFilter(verse);
+                    }
+                }
+                ordinal = end;
+            }
+        }
+        return new LocationSet(name, locations, 0, -1f);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof VerseRangeSet && Arrays.equals(bounds, ((VerseRangeSet) obj).bounds);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(bounds);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("[");
+        for (int i = 0; i < bounds.length; i += 2) {
+            if (i > 0) {
+                builder.append(", ");
+            }
+            builder.append(bounds[i]);
+            if (bounds[i + 1] - 1 > bounds[i]) {
+                builder.append('-').append(bounds[i + 1] - 1);
+            }
+        }
+        return builder.append(']').toString();
+    }
+
+    //==========================================================================
+    /**
+     * Class which collects ranges and merges overlapping and adjacent ones.
+     * Ranges are expected in order of their starts, otherwise they are sorted on build
+     */
+    private static class Builder {
+
+        private int[] data;
+        private int size = 0;
+        private boolean sorted = true;
+
+        Builder(int capacity) {
+            data = new int[Math.max(capacity, 1) * 2];
+        }
+
+        void add(int start, int end) {
+            if (size > 0 && start < data[size - 2]) {
+                sorted = false;
+            }
+            if (sorted && size > 0 && start <= data[size - 1]) { //Overlaps or touches previous range
+                data[size - 1] = Math.max(data[size - 1], end);
+                return;
+            }
+            if (size == data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            data[size++] = start;
+            data[size++] = end;
+        }
+
+        VerseRangeSet build() {
+            if (size == 0) {
+                return EMPTY;
+            }
+            if (!sorted) {
+                return mergeUnsorted();
+            }
+            return new VerseRangeSet(size == data.length ? data : Arrays.copyOf(data, size));
+        }
+
+        private VerseRangeSet mergeUnsorted() {
+            long[] ranges = new long[size / 2];
+            for (int i = 0; i < size; i += 2) {
+                ranges[i / 2] = ((long) data[i] << 32) | data[i + 1];
+            }
+            Arrays.sort(ranges);
+            size = 0;
+            sorted = true;
+            for (long range : ranges) {
+                add((int) (range >>> 32), (int) range);
+            }
+            return build();
+        }
+    }
+
+}
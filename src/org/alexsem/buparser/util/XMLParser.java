@@ -1,5 +1,6 @@
 package org.alexsem.buparser.util;
 
+import org.alexsem.buparser.CalendarEntry;
 import org.alexsem.buparser.model.Book;
 import org.alexsem.buparser.model.Chapter;
 import org.xmlpull.v1.XmlPullParser;
@@ -8,6 +9,7 @@ import org.xmlpull.v1.XmlPullParserFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.Reader;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -80,5 +82,98 @@ public abstract class XMLParser {
 
     }
 
+    /**
+     * Parses calendar entry which was written by CalendarEntry.writeXML
+     * @param input Stream to read data from (UTF-8)
+     * @return Parsed entry
+     * @throws XmlPullParserException in case XML parsing fails
+     * @throws IOException            in case stream reading fails
+     */
+    public static CalendarEntry parseCalendarEntry(InputStream input) throws XmlPullParserException, IOException {
+        XmlPullParser xpp = XmlPullParserFactory.newInstance().newPullParser();
+        try {
+            xpp.setInput(input, "UTF-8");
+            return parseCalendarEntry(xpp);
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Parses calendar entry which was written by CalendarEntry.writeXML
+     * @param input Reader to read data from
+     * @return Parsed entry
+     * @throws XmlPullParserException in case XML parsing fails
+     * @throws IOException            in case stream reading fails
+     */
+    public static CalendarEntry parseCalendarEntry(Reader input) throws XmlPullParserException, IOException {
+        XmlPullParser xpp = XmlPullParserFactory.newInstance().newPullParser();
+        try {
+            xpp.setInput(input);
+            return parseCalendarEntry(xpp);
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Parses calendar entry using prepared parser.
+     * Stress marks are converted back to &amp;#769; references (the same way links are beautified)
+     * @param xpp Parser with input set
+     * @return Parsed entry
+     * @throws XmlPullParserException in case XML parsing fails
+     * @throws IOException            in case stream reading fails
+     */
+    private static CalendarEntry parseCalendarEntry(XmlPullParser xpp) throws XmlPullParserException, IOException {
+        CalendarEntry entry = new CalendarEntry();
+        List<CalendarEntry.Line> section = null;
+        CalendarEntry.Line line = null;
+        while (xpp.getEventType() != XmlPullParser.END_DOCUMENT) {
+            if (xpp.getEventType() == XmlPullParser.START_TAG) {
+                String name = xpp.getName();
+                if (name.equals("entry")) {
+                    entry.setHoliday(Boolean.parseBoolean(xpp.getAttributeValue(null, "h")));
+                } else if (name.equals("t")) {
+                    entry.setTitle(restoreStress(xpp.nextText()));
+                } else if (name.equals("f")) {
+                    entry.setFeast(restoreStress(xpp.nextText()));
+                } else if (name.equals("fi")) {
+                    entry.setFeastingIndex(Integer.parseInt(xpp.nextText().trim()));
+                } else if (name.equals("o")) {
+                    section = entry.getReadingsOld();
+                } else if (name.equals("a")) {
+                    section = entry.getReadingsApostle();
+                } else if (name.equals("g")) {
+                    section = entry.getReadingsGospel();
+                } else if (name.equals("r")) {
+                    line = new CalendarEntry.Line();
+                } else if (line != null) {
+                    if (name.equals("l")) {
+                        line.setLink(restoreStress(xpp.nextText()));
+                    } else if (name.equals("c")) {
+                        line.setComment(restoreStress(xpp.nextText()));
+                    }
+                }
+            } else if (xpp.getEventType() == XmlPullParser.END_TAG) {
+                String name = xpp.getName();
+                if (name.equals("r")) {
+                    if (section != null) {
+                        section.add(line);
+                    }
+                    line = null;
+                } else if (name.equals("o") || name.equals("a") || name.equals("g")) {
+                    section = null;
+                } else if (name.equals("entry")) {
+                    break;
+                }
+            }
+            xpp.next();
+        }
+        return entry;
+    }
+
+    private static String restoreStress(String text) {
+        return text.indexOf('\u0301') < 0 ? text : text.replace("\u0301", "&#769;");
+    }
 
 }